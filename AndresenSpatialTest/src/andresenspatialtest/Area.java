@@ -2,11 +2,15 @@ package andresenspatialtest;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import java.util.ArrayList;
 import java.util.List;
-import org.geotools.data.FeatureSource;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
 
 /**
  * Convenient to save areas along with their geometries and some other parameters.
@@ -14,28 +18,25 @@ import org.opengis.feature.simple.SimpleFeatureType;
  */
 public class Area {
 
-    /** Store the feature collection created when reading in Areas from shapefile, this can be
-     * used to write out shapefile later */
-    static FeatureSource<SimpleFeatureType, SimpleFeature> featureSource = null;
-    /** The feature type associated with this area. Useful for generating new
-     * spatial objects from the areas. */
-    static SimpleFeatureType featureType;
     /** The feature associated with this area, used to build the output areas shapefil
      * once the algorithm has finished. */
     @Deprecated
     SimpleFeature feature;
-    /** The geometry of the area */
+    /** The geometry of the area (null for grid cells, see <code>GridIndex.createGeometry()</code>) */
     Geometry geometry;
+    /** A prepared version of the geometry (with an index of its line segments) that makes
+     * point-in-polygon tests much quicker for complicated areas. Built when first needed
+     * (see <code>getPreparedGeometry()</code>) or by <code>prepareAll()</code>. */
+    private volatile PreparedGeometry preparedGeometry;
     /** The number of base points within this area */
     int numBasePoints;
     /** The percentage of base points within this area */
     Double percentageBasePoints;
-    /** The number of test points in the area each time Monte Carlo is run */
-    List<Integer> numTestPoints;
-    /** The percentage of test points in the area each time Monte Carlo is run */
-    List<Double> percentageTestPoints;
-    /** The percentage of test points with outliers removed */
-    List<Double> pTestPoitsNoOutliers;
+    /** The lowest and highest percentage of test points in the area over all the Monte Carlo
+     * runs, once outliers have been removed (i.e. the confidence interval). The counts from
+     * each run are stored in a <code>CountMatrix</code> rather than in the Area. */
+    double confLowP;
+    double confUppP;
     /** The S-Index value for this area */
     double sVal;
     /** The actual number (and percentage) of test points in the area, used for outputting.
@@ -45,9 +46,104 @@ public class Area {
 
     public Area(Geometry geometry) {
         this.geometry = geometry;
-        this.numTestPoints = new ArrayList<Integer>();
-        this.percentageTestPoints = new ArrayList<Double>();
-        //this.pTestPoitsNoOutliers = new ArrayList<Double>();
+    }
+
+    /**
+     * Create a new area with the same geometry (and prepared geometry) and feature as this
+     * one, but none of the results.
+     */
+    Area copy() {
+        Area a = new Area(this.geometry);
+        a.feature = this.feature;
+        a.preparedGeometry = this.preparedGeometry;
+        return a;
+    }
+
+    /**
+     * The lower bound of the confidence interval as a number of test points (useful to
+     * report, but not used in the calculation).
+     * @param totalTestPoints The total number of test points.
+     */
+    int getConfLowCount(int totalTestPoints) {
+        return (int) Math.round(this.confLowP * totalTestPoints / 100);
+    }
+
+    /**
+     * The upper bound of the confidence interval as a number of test points.
+     * @see #getConfLowCount(int)
+     */
+    int getConfUppCount(int totalTestPoints) {
+        return (int) Math.round(this.confUppP * totalTestPoints / 100);
+    }
+
+    /**
+     * See if the given point lies within this area. This gives the same answer as
+     * <code>point.within(geometry)</code> but goes through the prepared geometry.
+     */
+    boolean contains(Geometry point) {
+        return this.getPreparedGeometry().contains(point);
+    }
+
+    /**
+     * See if the point with the given coordinates lies within this area.
+     */
+    boolean contains(double x, double y) {
+        return this.contains(this.geometry.getFactory().createPoint(new Coordinate(x, y)));
+    }
+
+    /**
+     * Get the prepared version of this area's geometry, creating it if necessary.
+     */
+    PreparedGeometry getPreparedGeometry() {
+        PreparedGeometry p = this.preparedGeometry;
+        if (p == null) {
+            synchronized (this) {
+                if (this.preparedGeometry == null) {
+                    this.preparedGeometry = prepare(this.geometry);
+                }
+                p = this.preparedGeometry;
+            }
+        }
+        return p;
+    }
+
+    private static PreparedGeometry prepare(Geometry geometry) {
+        PreparedGeometry p = PreparedGeometryFactory.prepare(geometry);
+        // The prepared geometry builds its segment index the first time it is used, and that
+        // isn't thread safe. So use it once now, then it can be shared by many threads.
+        p.contains(geometry.getFactory().createPoint(geometry.getEnvelopeInternal().centre()));
+        return p;
+    }
+
+    /**
+     * Build the prepared geometries for all the given areas, spreading the work over the
+     * threads in a pool. Useful for area files with lots of complicated polygons.
+     * @param areas The areas to prepare.
+     * @param pool The pool to use (e.g. the one that the test shares with other tests, so
+     * tests running together don't each start a thread per processor).
+     */
+    static void prepareAll(List<Area> areas, ForkJoinPool pool) {
+        try {
+            List<Future<PreparedGeometry>> tasks = new ArrayList<Future<PreparedGeometry>>(areas.size());
+            for (final Area a : areas) {
+                tasks.add(pool.submit(new Callable<PreparedGeometry>() {
+
+                    public PreparedGeometry call() throws Exception {
+                        return a.getPreparedGeometry();
+                    }
+                }));
+            }
+            for (Future<PreparedGeometry> f : tasks) {
+                f.get(); // Wait for all the areas to be prepared
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // Not fatal, any areas that failed will be prepared again when they are first used
+            e.printStackTrace();
+        }
     }
 
 }
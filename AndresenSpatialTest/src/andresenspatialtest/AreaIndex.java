@@ -0,0 +1,189 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * Counts the number of points that fall within each of a list of <code>Area</code>s.
+ * <p>
+ * An R-tree is built over the area envelopes once (see <code>PackedHilbertRTree</code>, which
+ * can also be saved and re-used), so each point only needs to be tested against the
+ * (usually one or two) areas whose bounding box contains it, rather than against every
+ * area. The containment test itself goes through each area's prepared geometry (see
+ * <code>Area.contains()</code>).
+ * <p>
+ * The areas are assumed not to overlap. If a point is within more than one area it is only
+ * counted in the first of them (the one that comes first in the list of areas), whether it
+ * is a base or a test point, so that the base and test percentages follow the same rule.
+ * The number of such points is given by <code>getNumOverlappingPoints()</code>.
+ * @author Nick Malleson
+ */
+public class AreaIndex implements AreaLocator {
+
+    /**
+     * Version of the rules used to decide which area a point is within (including how the
+     * points are converted to the areas' projection). Change this if the rules change, so
+     * that results saved by an <code>AssignmentCache</code> aren't used.
+     */
+    static final int RULE_VERSION = 3;
+    /** The areas that have been indexed, in the order they were given */
+    private List<Area> areas;
+    /** Tree of area envelopes. Items are the position of the area in the <code>areas</code> list */
+    private PackedHilbertRTree tree;
+    /** Number of points in the last call that were within more than one area */
+    private int numOverlappingPoints = 0;
+
+    /**
+     * Build an index over the given areas.
+     * @param areas The areas to index. The counts returned by the index are in the same order.
+     */
+    public AreaIndex(List<Area> areas) {
+        this(areas, PackedHilbertRTree.build(areas));
+    }
+
+    /**
+     * Create an index using a tree that has already been built over the areas.
+     * @param areas The areas that are indexed. The counts returned by the index are in the same order.
+     * @param tree A tree over the areas' envelopes (e.g. read from a file).
+     */
+    AreaIndex(List<Area> areas, PackedHilbertRTree tree) {
+        this.areas = areas;
+        this.tree = tree;
+    }
+
+    /**
+     * Count the number of points within each area. A point that is within more than one
+     * area is only counted in the first of them (see <code>assignPoints()</code>).
+     * @param points The points to count.
+     * @return An array of counts, the same length as the list of areas (element i is the
+     * number of points within area i).
+     */
+    public int[] countPointsWithin(PointSet points) {
+        int[] counts = new int[this.areas.size()];
+        this.numOverlappingPoints = 0;
+        PackedHilbertRTree.Results found = new PackedHilbertRTree.Results();
+        for (int p = 0; p < points.size(); p++) {
+            int id = this.locate(points, p, found);
+            if (id != NO_AREA) {
+                counts[id]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Work out which area each point lies within. This only needs to be done once for
+     * a set of points, after that the number of points in each area (or in any sample of the
+     * points) can be counted from the returned ids without any more geometry operations.
+     * <p>
+     * The areas are assumed not to overlap. If a point is within more than one area it is
+     * assigned to the first of them and counted in <code>getNumOverlappingPoints()</code>.
+     * @param points The points to assign.
+     * @return An (off-heap) buffer with one element per point, storing the position of the
+     * area that the point is within, or <code>NO_AREA</code> if it isn't in any area.
+     */
+    public IntBuffer assignPoints(PointSet points) {
+        IntBuffer ids = OffHeap.allocateInts(points.size());
+        this.numOverlappingPoints = 0;
+        PackedHilbertRTree.Results found = new PackedHilbertRTree.Results();
+        for (int p = 0; p < points.size(); p++) {
+            ids.put(p, this.locate(points, p, found));
+        }
+        return ids;
+    }
+
+    /**
+     * Find the first area that a point is within, counting the point in
+     * <code>numOverlappingPoints</code> if it is within more than one.
+     * @return The position of the area, or <code>NO_AREA</code>.
+     */
+    private int locate(PointSet points, int p, PackedHilbertRTree.Results found) {
+        Geometry g = points.getGeometry(p);
+        int id = NO_AREA;
+        boolean overlapping = false;
+        // Only need to test the areas whose envelopes contain the point
+        this.search(points, p, g, found);
+        for (int f = 0; f < found.size(); f++) {
+            int i = found.get(f);
+            if (contains(this.areas.get(i), points, p, g)) {
+                if (id == NO_AREA) {
+                    id = i;
+                }
+                else {
+                    overlapping = true;
+                    id = Math.min(id, i);
+                }
+            }
+        }
+        if (overlapping) {
+            this.numOverlappingPoints++;
+        }
+        return id;
+    }
+
+    /** Find the areas whose envelopes contain a point, using its geometry if it has one */
+    private void search(PointSet points, int p, Geometry g, PackedHilbertRTree.Results found) {
+        if (g != null) {
+            Envelope e = g.getEnvelopeInternal();
+            this.tree.search(e.getMinX(), e.getMinY(), e.getMaxX(), e.getMaxY(), found);
+        }
+        else {
+            double x = points.getX(p);
+            double y = points.getY(p);
+            this.tree.search(x, y, x, y, found);
+        }
+    }
+
+    /** See if an area contains a point, using its geometry if it has one */
+    private static boolean contains(Area area, PointSet points, int p, Geometry g) {
+        return g != null ? area.contains(g) : area.contains(points.getX(p), points.getY(p));
+    }
+
+    /**
+     * Count the number of points in each area from an array of area ids (as created by
+     * <code>assignPoints()</code>).
+     * @param ids The area ids of the points to count.
+     * @param from The position of the first id to count (inclusive).
+     * @param to The position of the last id to count (exclusive).
+     * @param counts An array (one element per area) that the counts are added to.
+     */
+    public static void countAreaIds(IntBuffer ids, int from, int to, int[] counts) {
+        for (int i = from; i < to; i++) {
+            int id = ids.get(i);
+            if (id != NO_AREA) {
+                counts[id]++;
+            }
+        }
+    }
+
+    /**
+     * The number of points in the last call to <code>countPointsWithin()</code> or
+     * <code>assignPoints()</code> that were within more than one area (if this isn't 0 then
+     * the areas overlap).
+     */
+    public int getNumOverlappingPoints() {
+        return this.numOverlappingPoints;
+    }
+
+    /** The number of areas in the index */
+    public int size() {
+        return this.areas.size();
+    }
+}
@@ -0,0 +1,58 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+
+/**
+ * Works out which area points lie within. Areas are identified by their position in the
+ * list of areas used by the algorithm.
+ * @author Nick Malleson
+ * @see AreaIndex
+ * @see GridIndex
+ */
+public interface AreaLocator {
+
+    /** The area id given to points that aren't within any area */
+    public static final int NO_AREA = -1;
+
+    /**
+     * Count the number of points within each area. A point within more than one area is
+     * counted in the same area that <code>assignPoints()</code> would give it.
+     * @param points The points to count.
+     * @return An array of counts, one element per area.
+     */
+    int[] countPointsWithin(PointSet points);
+
+    /**
+     * Work out which area each point lies within.
+     * @param points The points to assign.
+     * @return An (off-heap) buffer with one element per point, storing the id of the area
+     * that the point is within, or <code>NO_AREA</code> if it isn't in any area.
+     */
+    IntBuffer assignPoints(PointSet points);
+
+    /**
+     * The number of points in the last call to <code>countPointsWithin()</code> or
+     * <code>assignPoints()</code> that were within more than one area (these are only
+     * assigned to one of them).
+     */
+    int getNumOverlappingPoints();
+
+    /** The number of areas */
+    int size();
+
+}
@@ -0,0 +1,217 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A directory of saved point-to-area results, so that when the same points and areas are
+ * used again (e.g. with different parameters) the points don't have to be tested against
+ * the area polygons again.
+ * <p>
+ * Each entry is an array of ints (the area id of every point, or the number of points in
+ * every area) and is named by a SHA-256 hash of the contents of the point file, the area
+ * file, the kind of entry and <code>AreaIndex.RULE_VERSION</code>. If any of the files
+ * change the hash changes, so out of date entries are never used (they are just left
+ * behind). Entries are little-endian binary: a magic number, the length of the array, the
+ * number of points that were in more than one area, then the array. Entries are written to
+ * a temporary file first and then renamed, so a half-written entry is never read.
+ * @author Nick Malleson
+ */
+class AssignmentCache {
+
+    /** Entry storing the area id of each point (see <code>AreaLocator.assignPoints()</code>) */
+    static final String AREA_IDS = "ids";
+    /** Entry storing the number of points in each area (see <code>AreaLocator.countPointsWithin()</code>) */
+    static final String AREA_COUNTS = "counts";
+    private static final int MAGIC = 0x43415453; // "STAC" when read as little-endian bytes
+    private static final int HEADER_SIZE = 12;
+    private static final int BUFFER_SIZE = 1 << 20; // Bytes read or written at a time
+
+    private File directory;
+    /** Hashes of files that have already been read, so each file is only read once */
+    private Map<File, String> fileHashes = new HashMap<File, String>();
+
+    /**
+     * Use the given directory for the cache.
+     * @param directory The directory, created if it doesn't exist.
+     */
+    AssignmentCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the cache directory " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Find the name of the entry for the given files.
+     * @param kind The kind of entry, <code>AREA_IDS</code> or <code>AREA_COUNTS</code>.
+     * @param points The file of points.
+     * @param areas The area shapefile.
+     */
+    String key(String kind, File points, File areas) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update((kind + ":" + AreaIndex.RULE_VERSION + ":" + this.hash(points) + ":"
+                + this.hash(areas)).getBytes("UTF-8"));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Read an entry.
+     * @param key The name of the entry (see <code>key()</code>).
+     * @param length The length that the array should be.
+     * @return The entry, or null if there isn't one (or it isn't the right length).
+     */
+    Entry get(String key, int length) throws IOException {
+        File file = new File(this.directory, key + ".ids");
+        if (!file.isFile() || file.length() != HEADER_SIZE + 4L * length) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // (The mapping stays valid after the file is closed)
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != length) {
+                return null;
+            }
+            int numOverlappingPoints = buffer.getInt();
+            return new Entry(buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(), numOverlappingPoints);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Save an entry.
+     * @param key The name of the entry (see <code>key()</code>).
+     * @param values The array to save, from position 0 to its limit.
+     * @param numOverlappingPoints The number of points that were in more than one area.
+     */
+    void put(String key, IntBuffer values, int numOverlappingPoints) throws IOException {
+        File file = new File(this.directory, key + ".ids");
+        File temp = File.createTempFile(key, ".tmp", this.directory);
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(values.limit()).putInt(numOverlappingPoints);
+            for (int i = 0; i < values.limit();) {
+                if (buffer.remaining() < 4) {
+                    flush(channel, buffer);
+                }
+                int n = Math.min(buffer.remaining() / 4, values.limit() - i);
+                IntBuffer ints = buffer.asIntBuffer();
+                for (int j = 0; j < n; j++) {
+                    ints.put(j, values.get(i + j));
+                }
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+            flush(channel, buffer);
+        }
+        finally {
+            channel.close();
+        }
+        // (Another run might have saved the same entry in the meantime, that's fine)
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Could not save the cache entry " + file.getAbsolutePath());
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** The SHA-256 hash of the contents of a file, as a hex string */
+    private String hash(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        String hash = this.fileHashes.get(canonical);
+        if (hash == null) {
+            MessageDigest digest = sha256();
+            FileChannel channel = new FileInputStream(canonical).getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            finally {
+                channel.close();
+            }
+            hash = toHex(digest.digest());
+            this.fileHashes.put(canonical, hash);
+        }
+        return hash;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) { // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder s = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    /** A saved array and the number of points that were in more than one area */
+    static class Entry {
+
+        private IntBuffer values;
+        private int numOverlappingPoints;
+
+        Entry(IntBuffer values, int numOverlappingPoints) {
+            this.values = values;
+            this.numOverlappingPoints = numOverlappingPoints;
+        }
+
+        /** The array (read-only, memory-mapped from the cache file) */
+        IntBuffer getValues() {
+            return this.values;
+        }
+
+        int getNumOverlappingPoints() {
+            return this.numOverlappingPoints;
+        }
+    }
+}
@@ -23,7 +23,7 @@ public class Cell {
     public double maxX;
     public double maxY;
     public double size; 		// The size (in square units) of the cell
-    GeometryFactory geomFac = new GeometryFactory(); // For creating geometries for Cells
+    static final GeometryFactory geomFac = new GeometryFactory(); // For creating geometries for Cells (shared, factories are thread safe)
 
     public Cell(double minX, double minY, double maxX, double maxY) {
         this.minX = minX;
@@ -74,6 +74,22 @@ public class Cell {
 
     }
 
+    /**
+     * Find the box that contains all the points in the given sets.
+     */
+    public static Cell calcBoundingBoxCoords(PointSet... pointSets) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (PointSet points : pointSets) {
+            for (int i = 0; i < points.size(); i++) {
+                minX = Math.min(minX, points.getX(i));
+                minY = Math.min(minY, points.getY(i));
+                maxX = Math.max(maxX, points.getX(i));
+                maxY = Math.max(maxY, points.getY(i));
+            }
+        }
+        return new Cell(minX, minY, maxX, maxY);
+    }
+
     /**
      * Create a geometry from the current values of this <code>Cell</code>
      */
@@ -86,8 +102,8 @@ public class Cell {
             new Coordinate(this.maxX, this.minY), // LR
             new Coordinate(this.minX, this.minY), // LL
         };
-        LinearRing shape = this.geomFac.createLinearRing(ringCoords);
-        return this.geomFac.createPolygon(shape, new LinearRing[0]);
+        LinearRing shape = geomFac.createLinearRing(ringCoords);
+        return geomFac.createPolygon(shape, new LinearRing[0]);
 
     }
 
@@ -0,0 +1,217 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the results as a set of binary columns, one file per column, that other programs
+ * can memory-map directly (e.g. <code>numpy.memmap</code> or R's <code>readBin</code>).
+ * Each file is just the values for every area in order, as little-endian 32-bit ints
+ * (<code>.i4</code> files) or 64-bit doubles (<code>.f8</code> files). The directory also
+ * has a <code>header.json</code> file that lists the columns, their types (as numpy dtypes)
+ * and the number of rows, and for grids the position and size of the cells.
+ * <p>
+ * Columns are <code>AreaId</code> (the position of the area in the area shapefile, or the
+ * number of the occupied grid cell), the same columns as the shapefile output, and, for
+ * grids, the <code>Column</code> and <code>Row</code> of each cell.
+ * @author Nick Malleson
+ */
+class ColumnarResultWriter implements ResultWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16; // Bytes buffered per column before writing
+
+    private File directory;
+    private GridIndex grid; // Null if areas were read from a shapefile
+    private int absTotalTestPoints; // Used to convert the confidence interval to numbers of points
+    private int numRows = 0;
+    private List<Column> columns = new ArrayList<Column>();
+    private Column areaId, sIndex, numBase, numTest, pctBase, pctTest, confLow, confUpp, confLowP, confUppP;
+    private Column gridColumn, gridRow;
+
+    /**
+     * Create the column files.
+     * @param directory The directory to write the columns to (created if necessary).
+     * @param grid The grid that the areas are cells of, or null if they were read from a shapefile.
+     * @param absTotalTestPoints The total number of test points.
+     */
+    ColumnarResultWriter(File directory, GridIndex grid, int absTotalTestPoints) throws IOException {
+        this.directory = directory;
+        this.grid = grid;
+        this.absTotalTestPoints = absTotalTestPoints;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the directory " + directory.getAbsolutePath());
+        }
+        try {
+            this.areaId = this.addColumn("AreaId", false);
+            this.sIndex = this.addColumn(SpatialTestAlg.SIndexColumnName, false);
+            this.numBase = this.addColumn("NumBsePts", false);
+            this.numTest = this.addColumn("NumTstPts", false);
+            this.pctBase = this.addColumn("PctBsePts", true);
+            this.pctTest = this.addColumn("PctTstPts", true);
+            this.confLow = this.addColumn("ConfLow", false);
+            this.confUpp = this.addColumn("ConfUpp", false);
+            this.confLowP = this.addColumn("ConfLowP", true);
+            this.confUppP = this.addColumn("ConfUppP", true);
+            if (grid != null) {
+                this.gridColumn = this.addColumn("Column", false);
+                this.gridRow = this.addColumn("Row", false);
+            }
+        }
+        catch (IOException e) {
+            this.closeColumns();
+            throw e;
+        }
+    }
+
+    private Column addColumn(String name, boolean isDouble) throws IOException {
+        Column c = new Column(new File(this.directory, name + (isDouble ? ".f8" : ".i4")), name, isDouble);
+        this.columns.add(c);
+        return c;
+    }
+
+    public void write(int area, Area a) throws IOException {
+        this.areaId.putInt(area);
+        this.sIndex.putInt((int) a.sVal);
+        this.numBase.putInt(a.numBasePoints);
+        this.numTest.putInt(a.absNumTestPoints);
+        this.pctBase.putDouble(a.percentageBasePoints);
+        this.pctTest.putDouble(a.absPercentageTestPoints);
+        this.confLow.putInt(a.getConfLowCount(this.absTotalTestPoints));
+        this.confUpp.putInt(a.getConfUppCount(this.absTotalTestPoints));
+        this.confLowP.putDouble(a.confLowP);
+        this.confUppP.putDouble(a.confUppP);
+        if (this.grid != null) {
+            this.gridColumn.putInt(this.grid.getColumn(area));
+            this.gridRow.putInt(this.grid.getRow(area));
+        }
+        this.numRows++;
+    }
+
+    /** Finish writing the columns and write the header */
+    public void close() throws IOException {
+        this.closeColumns();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"rows\": ").append(this.numRows).append(",\n");
+        json.append("  \"byteOrder\": \"little\",\n");
+        if (this.grid != null) {
+            Cell box = this.grid.getBoundingBox();
+            json.append("  \"grid\": {\"size\": ").append(this.grid.getGridSize())
+                    .append(", \"minX\": ").append(box.minX)
+                    .append(", \"minY\": ").append(box.minY)
+                    .append(", \"cellWidth\": ").append(box.width() / this.grid.getGridSize())
+                    .append(", \"cellHeight\": ").append(box.height() / this.grid.getGridSize())
+                    .append("},\n");
+        }
+        json.append("  \"columns\": [\n");
+        for (int i = 0; i < this.columns.size(); i++) {
+            Column c = this.columns.get(i);
+            json.append("    {\"name\": \"").append(c.name)
+                    .append("\", \"file\": \"").append(c.file.getName())
+                    .append("\", \"type\": \"").append(c.isDouble ? "float64" : "int32")
+                    .append("\", \"dtype\": \"").append(c.isDouble ? "<f8" : "<i4")
+                    .append("\"}").append(i < this.columns.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n");
+        json.append("}\n");
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(this.directory, "header.json")),
+                Charset.forName("UTF-8"));
+        try {
+            out.write(json.toString());
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Close all the column files, even if some of them can't be closed */
+    private void closeColumns() throws IOException {
+        IOException problem = null;
+        for (Column c : this.columns) {
+            try {
+                c.close();
+            }
+            catch (IOException e) {
+                problem = e;
+            }
+        }
+        if (problem != null) {
+            throw problem;
+        }
+    }
+
+    /** One column file, with a buffer of values that haven't been written yet */
+    private static class Column {
+
+        private File file;
+        private String name;
+        private boolean isDouble;
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Column(File file, String name, boolean isDouble) throws IOException {
+            this.file = file;
+            this.name = name;
+            this.isDouble = isDouble;
+            this.channel = new FileOutputStream(file).getChannel();
+        }
+
+        void putInt(int value) throws IOException {
+            if (this.buffer.remaining() < 4) {
+                this.flush();
+            }
+            this.buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            if (this.buffer.remaining() < 8) {
+                this.flush();
+            }
+            this.buffer.putDouble(value);
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+
+        void close() throws IOException {
+            if (!this.channel.isOpen()) {
+                return;
+            }
+            try {
+                this.flush();
+            }
+            finally {
+                this.channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stores the number of sampled test points in every area for every Monte-Carlo run.
+ * <p>
+ * The counts are held in a single flat <code>int</code> array, ordered by area and then
+ * by run, so all the runs for one area are next to each other. Percentages aren't stored,
+ * they can be worked out from the counts when needed.
+ * @author Nick Malleson
+ */
+public class CountMatrix implements RunBounds {
+
+    /** The counts. The count for area a in run r is at <code>a * numRuns + r</code> */
+    private int[] counts;
+    private int numAreas;
+    private int numRuns;
+
+    /**
+     * Create an empty matrix.
+     * @param numAreas The number of areas.
+     * @param numRuns The number of Monte-Carlo runs.
+     * @throws IllegalArgumentException If the matrix would be too big to store in one array.
+     */
+    public CountMatrix(int numAreas, int numRuns) {
+        if ((long) numAreas * numRuns > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many areas (" + numAreas + ") and runs ("
+                    + numRuns + ") to store the count for every run");
+        }
+        this.numAreas = numAreas;
+        this.numRuns = numRuns;
+        this.counts = new int[numAreas * numRuns];
+    }
+
+    /**
+     * Create a matrix holding counts that have already been made (e.g. read back from a file).
+     * @param numAreas The number of areas.
+     * @param numRuns The number of Monte-Carlo runs.
+     * @param counts The counts, ordered by area and then by run.
+     */
+    CountMatrix(int numAreas, int numRuns, int[] counts) {
+        this.numAreas = numAreas;
+        this.numRuns = numRuns;
+        this.counts = counts;
+    }
+
+    /**
+     * Store the counts from one run.
+     * @param run The run number.
+     * @param areaCounts The number of sampled points in each area.
+     */
+    public void setRun(int run, int[] areaCounts) {
+        for (int a = 0; a < this.numAreas; a++) {
+            this.counts[a * this.numRuns + run] = areaCounts[a];
+        }
+    }
+
+    /** Get the number of sampled points in the area in the given run */
+    public int get(int area, int run) {
+        return this.counts[area * this.numRuns + run];
+    }
+
+    public int getFirstRunTotal() {
+        return this.getRunTotal(0);
+    }
+
+    /** The total number of sampled points (in all areas) in the given run */
+    public int getRunTotal(int run) {
+        int total = 0;
+        for (int a = 0; a < this.numAreas; a++) {
+            total += this.counts[a * this.numRuns + run];
+        }
+        return total;
+    }
+
+    /**
+     * Copy the counts for one area (for every run) into the given array.
+     * @param area The area.
+     * @param dest The array to copy into, must be at least <code>getNumRuns()</code> long.
+     */
+    public void getAreaCounts(int area, int[] dest) {
+        System.arraycopy(this.counts, area * this.numRuns, dest, 0, this.numRuns);
+    }
+
+    /**
+     * Find the confidence interval for every area: the lowest and highest counts once
+     * <code>numToRemove</code> outliers have been removed from the top and bottom of the
+     * area's counts. This gives the same values as sorting the counts, but the two bounds
+     * are found with a selection algorithm (O(runs) rather than O(runs log runs)) and the
+     * areas are shared out between the threads of the given pool.
+     * @param numToRemove The number of outliers to remove from each end.
+     * @param lower Array to store the lower bound for each area in.
+     * @param upper Array to store the upper bound for each area in.
+     * @param pool The pool to run the calculation in.
+     */
+    public void computeBounds(int numToRemove, int[] lower, int[] upper, ForkJoinPool pool) {
+        if (this.numRuns - 2 * numToRemove < 1) {
+            throw new IllegalArgumentException("Cannot remove " + numToRemove + " outliers from each "
+                    + "end of " + this.numRuns + " runs, increase the number of runs or the confidence interval");
+        }
+        pool.invoke(new BoundsTask(numToRemove, lower, upper, 0, this.numAreas));
+    }
+
+    /** Finds the bounds for a range of areas, splitting the range in two if it is large */
+    private class BoundsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int numToRemove;
+        private int[] lower;
+        private int[] upper;
+        private int from; // First area (inclusive)
+        private int to; // Last area (exclusive)
+
+        BoundsTask(int numToRemove, int[] lower, int[] upper, int from, int to) {
+            this.numToRemove = numToRemove;
+            this.lower = lower;
+            this.upper = upper;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            // Stop splitting when there are about 64k counts to look at
+            if ((long) (this.to - this.from) * numRuns > 65536 && this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new BoundsTask(numToRemove, lower, upper, from, mid),
+                        new BoundsTask(numToRemove, lower, upper, mid, to));
+                return;
+            }
+            int[] scratch = new int[numRuns];
+            int lowIndex = this.numToRemove;
+            int uppIndex = numRuns - 1 - this.numToRemove;
+            for (int a = this.from; a < this.to; a++) {
+                getAreaCounts(a, scratch);
+                this.lower[a] = select(scratch, 0, numRuns, lowIndex);
+                // Everything after lowIndex is now at least as big as the lower bound
+                this.upper[a] = select(scratch, lowIndex, numRuns, uppIndex);
+            }
+        }
+    }
+
+    /**
+     * Find the k'th smallest value in part of an array (quickselect, with a three-way
+     * partition because there are usually lots of equal counts). The array is reordered so
+     * that everything before position k is no bigger than the result and everything after
+     * it is no smaller.
+     * @param a The array.
+     * @param from The start of the part of the array to search (inclusive).
+     * @param to The end of the part of the array to search (exclusive).
+     * @param k The position (from the start of the array) of the value to find.
+     * @return The value that would be at position k if the part of the array was sorted.
+     */
+    static int select(int[] a, int from, int to, int k) {
+        int lo = from;
+        int hi = to - 1;
+        while (hi > lo) {
+            // Median of three pivot
+            int mid = (lo + hi) >>> 1;
+            int pivot = Math.max(Math.min(a[lo], a[mid]), Math.min(Math.max(a[lo], a[mid]), a[hi]));
+            // Partition into a[lo..lt) < pivot, a[lt..gt] == pivot, a(gt..hi] > pivot
+            int lt = lo;
+            int gt = hi;
+            int i = lo;
+            while (i <= gt) {
+                if (a[i] < pivot) {
+                    swap(a, lt++, i++);
+                }
+                else if (a[i] > pivot) {
+                    swap(a, i, gt--);
+                }
+                else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                hi = lt - 1;
+            }
+            else if (k > gt) {
+                lo = gt + 1;
+            }
+            else {
+                return pivot;
+            }
+        }
+        return a[k];
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int tmp = a[i];
+        a[i] = a[j];
+        a[j] = tmp;
+    }
+
+    /** The array that holds the counts, ordered by area and then by run (not a copy) */
+    int[] getCounts() {
+        return this.counts;
+    }
+
+    public int getNumAreas() {
+        return this.numAreas;
+    }
+
+    public int getNumRuns() {
+        return this.numRuns;
+    }
+}
@@ -0,0 +1,278 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Saves the number of sampled test points in every area in every Monte-Carlo run, with
+ * the other numbers needed to work out the results, so that the results can be calculated
+ * again (e.g. with a different confidence interval) without re-running the simulation.
+ * <p>
+ * The file is little-endian binary: a header (the magic number, a version, the number of
+ * areas and runs, the point totals and either the grid size, bounding box and ids of the
+ * occupied cells or, if the areas were read from a shapefile, a SHA-256 hash of the .shp
+ * file), then the number of base and test points in each area, then the
+ * <code>CountMatrix</code> counts in the same order as they are held in memory. The hash
+ * is used to check that the counts are matched up with the same areas when they are read.
+ * @author Nick Malleson
+ */
+class CountsFile {
+
+    private static final int MAGIC = 0x4d435453; // "STCM" when read as little-endian bytes
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32; // Bytes in a SHA-256 hash
+    private static final int BUFFER_SIZE = 1 << 16; // Bytes read or written at a time
+
+    private CountMatrix matrix;
+    private int totalSampledTestPoints;
+    private int totalBasePoints;
+    private int absTotalTestPoints;
+    private int[] numBasePoints;
+    private int[] absNumTestPoints;
+    private GridIndex grid; // Null if the areas were read from a shapefile
+    private byte[] areaHash; // The hash of the area shapefile (null for grids)
+
+    private CountsFile() {
+    }
+
+    /**
+     * Save the counts.
+     * @param file The file to write (replaced if it exists).
+     * @param matrix The counts from every Monte-Carlo run.
+     * @param areas The areas, with their numbers of base and test points.
+     * @param totalSampledTestPoints The number of test points in each sample.
+     * @param totalBasePoints The total number of base points.
+     * @param absTotalTestPoints The total number of test points.
+     * @param grid The grid that the areas are cells of, or null if they were read from a shapefile.
+     * @param areaShapefile The shapefile that the areas were read from (ignored for grids).
+     */
+    static void write(File file, CountMatrix matrix, List<Area> areas, int totalSampledTestPoints,
+            int totalBasePoints, int absTotalTestPoints, GridIndex grid, File areaShapefile) throws IOException {
+        byte[] areaHash = grid == null ? hash(areaShapefile) : null;
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(matrix.getNumAreas()).putInt(matrix.getNumRuns());
+            buffer.putInt(totalSampledTestPoints).putInt(totalBasePoints).putInt(absTotalTestPoints);
+            buffer.putInt(grid == null ? 0 : grid.getGridSize());
+            if (grid != null) {
+                Cell box = grid.getBoundingBox();
+                buffer.putDouble(box.minX).putDouble(box.minY).putDouble(box.maxX).putDouble(box.maxY);
+                for (int i = 0; i < grid.size(); i++) {
+                    flushIfFull(channel, buffer, 8);
+                    buffer.putLong(grid.getCellId(i));
+                }
+            }
+            else {
+                buffer.put(areaHash);
+            }
+            for (Area a : areas) {
+                flushIfFull(channel, buffer, 8);
+                buffer.putInt(a.numBasePoints).putInt(a.absNumTestPoints);
+            }
+            int[] counts = matrix.getCounts();
+            for (int i = 0; i < counts.length;) {
+                flushIfFull(channel, buffer, 4);
+                int n = Math.min(buffer.remaining() / 4, counts.length - i);
+                buffer.asIntBuffer().put(counts, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+            flush(channel, buffer);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read counts that were saved by <code>write()</code>.
+     * @throws IOException If the file can't be read or isn't a counts file.
+     */
+    static CountsFile read(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip(); // Start empty
+            fill(channel, buffer, 32);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a file of Monte-Carlo counts");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Can't read version " + version + " counts files");
+            }
+            CountsFile c = new CountsFile();
+            int numAreas = buffer.getInt();
+            int numRuns = buffer.getInt();
+            if (numAreas < 0 || numRuns < 0 || (long) numAreas * numRuns > Integer.MAX_VALUE - 8) {
+                throw new IOException(file.getName() + " has too many counts to read ("
+                        + numAreas + " areas and " + numRuns + " runs)");
+            }
+            c.totalSampledTestPoints = buffer.getInt();
+            c.totalBasePoints = buffer.getInt();
+            c.absTotalTestPoints = buffer.getInt();
+            int gridSize = buffer.getInt();
+            if (gridSize > 0) {
+                fill(channel, buffer, 32);
+                Cell box = new Cell(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                long[] cellIds = new long[numAreas];
+                for (int i = 0; i < numAreas; i++) {
+                    fill(channel, buffer, 8);
+                    cellIds[i] = buffer.getLong();
+                }
+                c.grid = new GridIndex(box, gridSize, cellIds);
+            }
+            else {
+                fill(channel, buffer, HASH_LENGTH);
+                c.areaHash = new byte[HASH_LENGTH];
+                buffer.get(c.areaHash);
+            }
+            c.numBasePoints = new int[numAreas];
+            c.absNumTestPoints = new int[numAreas];
+            for (int i = 0; i < numAreas; i++) {
+                fill(channel, buffer, 8);
+                c.numBasePoints[i] = buffer.getInt();
+                c.absNumTestPoints[i] = buffer.getInt();
+            }
+            if (4L * numAreas * numRuns > channel.size()) { // (Don't allocate the counts for a truncated file)
+                throw new EOFException("The counts file is shorter than expected");
+            }
+            int[] counts = new int[numAreas * numRuns];
+            for (int i = 0; i < counts.length;) {
+                fill(channel, buffer, 4);
+                int n = Math.min(buffer.remaining() / 4, counts.length - i);
+                buffer.asIntBuffer().get(counts, i, n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+            c.matrix = new CountMatrix(numAreas, numRuns, counts);
+            return c;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /** The SHA-256 hash of the contents of a file */
+    private static byte[] hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) { // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        finally {
+            channel.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Check whether the counts were saved for the areas in a shapefile.
+     * @param areaShapefile The .shp file.
+     * @return true if the counts were saved for the same file (with exactly the same
+     * contents), false if they weren't or they were saved for a grid.
+     */
+    boolean isForAreas(File areaShapefile) throws IOException {
+        return this.areaHash != null && Arrays.equals(this.areaHash, hash(areaShapefile));
+    }
+
+    /** Write out the buffer if there isn't room for another value of the given size */
+    private static void flushIfFull(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Make sure that (at least) the given number of bytes are left to read in the buffer */
+    private static void fill(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() >= size) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < size) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("The counts file is shorter than expected");
+            }
+        }
+        buffer.flip();
+    }
+
+    CountMatrix getMatrix() {
+        return this.matrix;
+    }
+
+    int getNumAreas() {
+        return this.numBasePoints.length;
+    }
+
+    int getTotalSampledTestPoints() {
+        return this.totalSampledTestPoints;
+    }
+
+    int getTotalBasePoints() {
+        return this.totalBasePoints;
+    }
+
+    int getAbsTotalTestPoints() {
+        return this.absTotalTestPoints;
+    }
+
+    int getNumBasePoints(int area) {
+        return this.numBasePoints[area];
+    }
+
+    int getAbsNumTestPoints(int area) {
+        return this.absNumTestPoints[area];
+    }
+
+    /** The grid that the areas are cells of, or null if they were read from a shapefile */
+    GridIndex getGrid() {
+        return this.grid;
+    }
+}
@@ -0,0 +1,241 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads point coordinates from a CSV file, such as the street-level crime files from
+ * police.uk, which have <code>Longitude</code> and <code>Latitude</code> columns. (Files
+ * with <code>X</code> and <code>Y</code> columns can also be read.) The first line must
+ * be a header with the column names. Points read from <code>Longitude</code> and
+ * <code>Latitude</code> columns are marked as such (see
+ * <code>PointSet.isLongitudeLatitude()</code>), so they can be converted to the projection of
+ * the areas.
+ * <p>
+ * The file is read in fixed-size blocks and the coordinates are parsed straight from the
+ * bytes into off-heap buffers, without creating a <code>String</code> per line or field, so
+ * the heap doesn't grow with the size of the file. Fields can be
+ * quoted (quoted fields can contain commas). Rows without coordinates (police.uk includes
+ * crimes that have no location) are skipped, and counted in <code>PointSet.getNumSkipped()</code>.
+ * @author Nick Malleson
+ */
+class CsvPointReader {
+
+    private static final int BLOCK_SIZE = 1 << 16; // Bytes read at a time
+    /** Powers of ten that can be represented exactly as doubles */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private int xColumn = -1; // The column with the x coordinate (longitude)
+    private int yColumn = -1; // The column with the y coordinate (latitude)
+    private boolean longitude = false; // Whether the x column is called Longitude
+    private boolean latitude = false; // Whether the y column is called Latitude
+    private DoubleBuffer xs = OffHeap.allocateDoubles(1 << 16);
+    private DoubleBuffer ys = OffHeap.allocateDoubles(1 << 16);
+    private int numPoints = 0;
+    private int numSkipped = 0; // Rows without valid coordinates
+
+    // State of the parser
+    private boolean header = true; // Whether the first line is still being read
+    private boolean quoted = false; // Whether inside a quoted field
+    private boolean rowStarted = false; // Whether anything has been read on this row
+    private int column = 0;
+    private double x = Double.NaN; // The coordinates read from the current row
+    private double y = Double.NaN;
+    // The number being read from the current field
+    private long mantissa = 0;
+    private int digits = 0; // Significant digits in the mantissa
+    private int decimals = 0; // Digits after the decimal point
+    private boolean negative = false;
+    private boolean afterPoint = false;
+    private boolean empty = true; // No digits yet
+    private boolean unusual = false; // Can't be parsed quickly (e.g. has an exponent or lots of digits)
+    /** Characters of the current field, only kept for the header and coordinate columns */
+    private char[] field = new char[64];
+    private int fieldLength = 0;
+
+    /**
+     * Read the points in a CSV file.
+     * @param csvFile The file to read.
+     * @return The points (and the number of rows that were skipped).
+     * @throws IOException If the file can't be read or doesn't have coordinate columns.
+     */
+    static PointSet read(File csvFile) throws IOException {
+        CsvPointReader reader = new CsvPointReader();
+        InputStream in = new FileInputStream(csvFile);
+        try {
+            byte[] block = new byte[BLOCK_SIZE];
+            int read;
+            while ((read = in.read(block)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    reader.accept(block[i]);
+                }
+            }
+            reader.accept((byte) '\n'); // In case the last line doesn't end with a new line
+        }
+        finally {
+            in.close();
+        }
+        if (reader.xColumn < 0 || reader.yColumn < 0) {
+            throw new IOException("Could not find Longitude and Latitude (or X and Y) columns in " + csvFile.getName());
+        }
+        PointSet points = new PointSet(reader.xs, reader.ys, reader.numPoints, reader.numSkipped);
+        points.setLongitudeLatitude(reader.longitude && reader.latitude);
+        return points;
+    }
+
+    /** Read the next byte of the file */
+    private void accept(byte b) {
+        if (b == '"') {
+            this.quoted = !this.quoted;
+            this.rowStarted = true;
+        }
+        else if (this.quoted || (b != ',' && b != '\n' && b != '\r')) {
+            this.rowStarted = true;
+            if (this.header) {
+                this.append(b);
+            }
+            else if (this.column == this.xColumn || this.column == this.yColumn) {
+                this.acceptNumber(b);
+            }
+        }
+        else if (b == ',') {
+            this.rowStarted = true;
+            this.endField();
+        }
+        else if (this.rowStarted) { // End of a row (blank lines, and the '\n' after a '\r', are ignored)
+            this.endField();
+            if (this.header) {
+                this.header = false;
+            }
+            else if (Double.isNaN(this.x) || Double.isNaN(this.y)) {
+                this.numSkipped++;
+            }
+            else {
+                this.addPoint(this.x, this.y);
+            }
+            this.column = 0;
+            this.x = Double.NaN;
+            this.y = Double.NaN;
+            this.rowStarted = false;
+        }
+    }
+
+    /** Read the next character of a number */
+    private void acceptNumber(byte b) {
+        this.append(b);
+        if (b >= '0' && b <= '9') {
+            this.mantissa = this.mantissa * 10 + (b - '0');
+            if (this.mantissa > 0) {
+                this.digits++;
+            }
+            if (this.afterPoint) {
+                this.decimals++;
+            }
+            this.empty = false;
+        }
+        else if (b == '-' && this.empty && !this.negative && !this.afterPoint) {
+            this.negative = true;
+        }
+        else if (b == '.' && !this.afterPoint) {
+            this.afterPoint = true;
+        }
+        else if (b != ' ') {
+            this.unusual = true;
+        }
+    }
+
+    private void endField() {
+        if (this.header) {
+            String name = new String(this.field, 0, this.fieldLength).trim();
+            if (name.equalsIgnoreCase("Longitude") || (this.xColumn < 0 && name.equalsIgnoreCase("X"))) {
+                this.xColumn = this.column;
+                this.longitude = name.equalsIgnoreCase("Longitude");
+            }
+            else if (name.equalsIgnoreCase("Latitude") || (this.yColumn < 0 && name.equalsIgnoreCase("Y"))) {
+                this.yColumn = this.column;
+                this.latitude = name.equalsIgnoreCase("Latitude");
+            }
+        }
+        else if (this.column == this.xColumn || this.column == this.yColumn) {
+            double value = this.fieldValue();
+            if (this.column == this.xColumn) {
+                this.x = value;
+            }
+            else {
+                this.y = value;
+            }
+        }
+        this.column++;
+        this.fieldLength = 0;
+        this.mantissa = 0;
+        this.digits = 0;
+        this.decimals = 0;
+        this.negative = false;
+        this.afterPoint = false;
+        this.empty = true;
+        this.unusual = false;
+    }
+
+    /** The value of the number in the current field, or NaN if there isn't one */
+    private double fieldValue() {
+        if (this.empty && !this.unusual) {
+            return Double.NaN;
+        }
+        if (!this.unusual && this.digits <= 15 && this.decimals < POWERS_OF_TEN.length) {
+            // The mantissa and power of ten are both exact, so dividing them gives the same
+            // (correctly rounded) value as Double.parseDouble()
+            double value = this.mantissa / POWERS_OF_TEN[this.decimals];
+            return this.negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(this.field, 0, this.fieldLength).trim());
+        }
+        catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private void append(byte b) {
+        if (this.fieldLength == this.field.length) {
+            this.field = Arrays.copyOf(this.field, this.field.length * 2);
+        }
+        this.field[this.fieldLength++] = (char) (b & 0xFF);
+    }
+
+    private void addPoint(double x, double y) {
+        if (this.numPoints == this.xs.capacity()) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE / 8, 2L * this.xs.capacity());
+            this.xs = OffHeap.grow(this.xs, capacity);
+            this.ys = OffHeap.grow(this.ys, capacity);
+        }
+        this.xs.put(this.numPoints, x);
+        this.ys.put(this.numPoints, y);
+        this.numPoints++;
+    }
+}
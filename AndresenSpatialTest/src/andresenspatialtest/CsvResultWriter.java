@@ -0,0 +1,74 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the results to a CSV file, one row per area, as they are calculated. The columns
+ * are the same as those written by <code>ColumnarResultWriter</code>.
+ * @author Nick Malleson
+ */
+class CsvResultWriter implements ResultWriter {
+
+    private Writer out;
+    private GridIndex grid; // Null if areas were read from a shapefile
+    private int absTotalTestPoints; // Used to convert the confidence interval to numbers of points
+
+    /**
+     * Create the CSV file and write the header.
+     * @param file The file to write.
+     * @param grid The grid that the areas are cells of, or null if they were read from a shapefile.
+     * @param absTotalTestPoints The total number of test points.
+     */
+    CsvResultWriter(File file, GridIndex grid, int absTotalTestPoints) throws IOException {
+        this.grid = grid;
+        this.absTotalTestPoints = absTotalTestPoints;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+        this.out.write("AreaId," + SpatialTestAlg.SIndexColumnName
+                + ",NumBsePts,NumTstPts,PctBsePts,PctTstPts,ConfLow,ConfUpp,ConfLowP,ConfUppP"
+                + (grid == null ? "" : ",Column,Row") + "\n");
+    }
+
+    public void write(int area, Area a) throws IOException {
+        StringBuilder row = new StringBuilder(128);
+        row.append(area).append(',')
+                .append((int) a.sVal).append(',')
+                .append(a.numBasePoints).append(',')
+                .append(a.absNumTestPoints).append(',')
+                .append(a.percentageBasePoints).append(',')
+                .append(a.absPercentageTestPoints).append(',')
+                .append(a.getConfLowCount(this.absTotalTestPoints)).append(',')
+                .append(a.getConfUppCount(this.absTotalTestPoints)).append(',')
+                .append(a.confLowP).append(',')
+                .append(a.confUppP);
+        if (this.grid != null) {
+            row.append(',').append(this.grid.getColumn(area)).append(',').append(this.grid.getRow(area));
+        }
+        row.append('\n');
+        this.out.write(row.toString());
+    }
+
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
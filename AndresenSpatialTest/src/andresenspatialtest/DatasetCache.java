@@ -0,0 +1,198 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Keeps recently used point and area files in memory, so that a program that runs many
+ * tests (e.g. <code>SpatialTestServer</code>) doesn't have to read the same files every
+ * time. Give the same cache to each <code>SpatialTestAlg</code> (see
+ * <code>SpatialTestAlg.setDatasetCache()</code>).
+ * <p>
+ * Holds at most a fixed number of files; when it is full the one that was used least
+ * recently is dropped. A file is read again if its length or modification time has
+ * changed since it was cached. Tests can use the cache at the same time (e.g. in a
+ * <code>JobScheduler</code>); a file that several tests need is only read once. The cached
+ * data are never changed by a test: points are only read, and each test gets its own copies
+ * of the areas (see <code>AreaLayer</code>).
+ * @author Nick Malleson
+ */
+public class DatasetCache {
+
+    /** A reasonable number of files to keep if there's no reason to choose another */
+    public static final int DEFAULT_MAX_DATASETS = 8;
+
+    private final int maxDatasets;
+    /** The cached files, in the order they were last used (least recent first) */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Create an empty cache.
+     * @param maxDatasets The maximum number of files to keep.
+     */
+    public DatasetCache(int maxDatasets) {
+        this.maxDatasets = maxDatasets;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > DatasetCache.this.maxDatasets;
+            }
+        };
+    }
+
+    /**
+     * Get the points read from a file. If they aren't cached (or the file has changed) they are
+     * read with the given loader. If another thread is already reading the file this waits for
+     * it to finish rather than reading it again.
+     * @param loader Reads the points, returning null if they can't be read (nothing is cached).
+     * @return The points, or null if they couldn't be read.
+     * @throws IOException If the loader throws an exception.
+     */
+    PointSet getPoints(File file, Callable<PointSet> loader) throws IOException {
+        return this.get(file, "points", loader);
+    }
+
+    /**
+     * Get the areas read from a shapefile, reading them with the loader if they aren't cached.
+     * @see #getPoints(File, Callable)
+     */
+    AreaLayer getAreas(File file, Callable<AreaLayer> loader) throws IOException {
+        return this.get(file, "areas", loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(File file, String kind, Callable<T> loader) throws IOException {
+        File f = file.getCanonicalFile();
+        String key = kind + ":" + f.getPath();
+        Entry e;
+        boolean load = false;
+        synchronized (this) {
+            e = this.entries.get(key);
+            if (e == null || e.length != f.length() || e.lastModified != f.lastModified()) {
+                e = new Entry(f.length(), f.lastModified(), new FutureTask<Object>((Callable<Object>) loader));
+                this.entries.put(key, e);
+                load = true;
+            }
+        }
+        if (load) {
+            e.data.run(); // Read the file in this thread
+        }
+        try {
+            T data = (T) e.data.get();
+            if (data == null) {
+                this.remove(key, e);
+            }
+            return data;
+        }
+        catch (ExecutionException ex) {
+            this.remove(key, e);
+            throw new IOException("Could not read " + f.getName(), ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + f.getName() + " to be read");
+        }
+    }
+
+    /** Remove an entry, unless it has already been replaced */
+    private synchronized void remove(String key, Entry e) {
+        if (this.entries.get(key) == e) {
+            this.entries.remove(key);
+        }
+    }
+
+    /** Remove everything from the cache */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /** The number of files in the cache */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private static class Entry {
+
+        private long length;
+        private long lastModified;
+        private FutureTask<Object> data; // Finishes when the file has been read
+
+        Entry(long length, long lastModified, FutureTask<Object> data) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The areas read from a shapefile, with their prepared geometries and an index, and the
+     * shapefile's feature type and projection.
+     */
+    static class AreaLayer {
+
+        private List<Area> areas;
+        private SimpleFeatureType featureType;
+        private CoordinateReferenceSystem crs;
+        private PackedHilbertRTree tree;
+
+        AreaLayer(List<Area> areas, SimpleFeatureType featureType, CoordinateReferenceSystem crs,
+                PackedHilbertRTree tree) {
+            this.areas = areas;
+            this.featureType = featureType;
+            this.crs = crs;
+            this.tree = tree;
+        }
+
+        /**
+         * Get new copies of the areas for a test to store its results in. The copies share
+         * the geometries (and prepared geometries) of the cached areas.
+         */
+        List<Area> copyAreas() {
+            List<Area> copies = new ArrayList<Area>(this.areas.size());
+            for (Area a : this.areas) {
+                copies.add(a.copy());
+            }
+            return copies;
+        }
+
+        SimpleFeatureType getFeatureType() {
+            return this.featureType;
+        }
+
+        CoordinateReferenceSystem getCRS() {
+            return this.crs;
+        }
+
+        /** An index of the areas, in the same order as <code>copyAreas()</code> */
+        PackedHilbertRTree getTree() {
+            return this.tree;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A regular grid that only keeps the cells that points lie within. The cell that a point
+ * is in is found by arithmetic on its coordinates, rather than by testing it against cell
+ * polygons, and cell polygons are only created when they are needed (see
+ * <code>createGeometry()</code>), so memory depends on the number of occupied cells rather
+ * than on the size of the grid.
+ * <p>
+ * The grid covers a bounding box with <code>size x size</code> cells, each one
+ * <code>w = width / size</code> wide and <code>h = height / size</code> high. The cell in
+ * column <code>c</code> and row <code>r</code> has the (grid) id <code>c * size + r</code>.
+ * Only the cells that held at least one of the points given to the constructor are areas;
+ * area <code>i</code> is the occupied cell with the i'th smallest grid id.
+ * <p>
+ * Cells are half-open: a point is in column <code>floor((x - minX) / w)</code> and row
+ * <code>floor((y - minY) / h)</code>, so a point on the edge between two cells belongs to
+ * the cell to its right (or above it). The exception is the right and top edges of the whole
+ * grid, which belong to the last column and row so that every point inside the bounding box
+ * (including the points that define it) is in exactly one cell. Points outside the bounding
+ * box aren't in any cell. A geometry that isn't a point is only in a cell if its envelope
+ * is entirely inside the cell.
+ * @author Nick Malleson
+ */
+public class GridIndex implements AreaLocator {
+
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    private double cellWidth;
+    private double cellHeight;
+    private int gridSize; // Number of cells along each side
+    /** The grid ids of the occupied cells, in ascending order (the position is the area id) */
+    private long[] cellIds;
+
+    /**
+     * Create a grid and find the cells that are occupied.
+     * @param box The area covered by the grid.
+     * @param size The number of cells along each side of the grid.
+     * @param pointSets All the points that will be located in the grid. Cells that don't
+     * hold any of these points won't be areas.
+     */
+    public GridIndex(Cell box, int size, PointSet... pointSets) {
+        this.setBox(box, size);
+
+        // Find the distinct ids of the cells that points are in. These are collected in a
+        // hash set (open addressing, -1 marks an empty slot) so memory depends on the number
+        // of occupied cells rather than the number of points.
+        long[] set = new long[1024];
+        Arrays.fill(set, -1);
+        int numCells = 0;
+        for (PointSet points : pointSets) {
+            for (int i = 0; i < points.size(); i++) {
+                long id = this.gridId(points, i);
+                if (id >= 0 && insert(set, id)) {
+                    numCells++;
+                    if (2 * numCells > set.length) { // Keep the set at most half full
+                        set = rehash(set, 2 * set.length);
+                    }
+                }
+            }
+        }
+        this.cellIds = new long[numCells];
+        int n = 0;
+        for (long id : set) {
+            if (id >= 0) {
+                this.cellIds[n++] = id;
+            }
+        }
+        Arrays.sort(this.cellIds);
+    }
+
+    /**
+     * Re-create a grid whose occupied cells are already known (e.g. from
+     * <code>getCellId()</code> on an earlier grid over the same points).
+     * @param box The area covered by the grid.
+     * @param size The number of cells along each side of the grid.
+     * @param cellIds The grid ids of the occupied cells, in ascending order.
+     */
+    GridIndex(Cell box, int size, long[] cellIds) {
+        this.setBox(box, size);
+        this.cellIds = cellIds;
+    }
+
+    private void setBox(Cell box, int size) {
+        this.minX = box.minX;
+        this.minY = box.minY;
+        this.maxX = box.maxX;
+        this.maxY = box.maxY;
+        this.cellWidth = box.width() / size;
+        this.cellHeight = box.height() / size;
+        this.gridSize = size;
+    }
+
+    /** Add an id to a hash set of ids, returning false if it was already there */
+    private static boolean insert(long[] set, long id) {
+        int mask = set.length - 1; // (The length is a power of two)
+        // Use as many of the top (best mixed) bits of the product as the table has slots for
+        int bits = Integer.numberOfTrailingZeros(set.length);
+        int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - bits)) & mask;
+        while (set[slot] != -1) {
+            if (set[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        set[slot] = id;
+        return true;
+    }
+
+    private static long[] rehash(long[] set, int length) {
+        long[] bigger = new long[length];
+        Arrays.fill(bigger, -1);
+        for (long id : set) {
+            if (id >= 0) {
+                insert(bigger, id);
+            }
+        }
+        return bigger;
+    }
+
+    /**
+     * Find the area (occupied cell) containing the given coordinates.
+     * @return The area id, or <code>NO_AREA</code> if the point isn't in an occupied cell.
+     */
+    public int locate(double x, double y) {
+        return this.areaId(this.gridId(x, y));
+    }
+
+    /** Find the area that a point is within (see the class comment for the rules) */
+    private int locate(PointSet points, int i) {
+        return this.areaId(this.gridId(points, i));
+    }
+
+    private int areaId(long gridId) {
+        if (gridId < 0) {
+            return NO_AREA;
+        }
+        int i = Arrays.binarySearch(this.cellIds, gridId);
+        return i < 0 ? NO_AREA : i;
+    }
+
+    /** The grid id of the cell containing the coordinates, or -1 if they are outside the grid */
+    private long gridId(double x, double y) {
+        if (x < this.minX || x > this.maxX || y < this.minY || y > this.maxY
+                || Double.isNaN(x) || Double.isNaN(y)) {
+            return -1;
+        }
+        return (long) this.column(x) * this.gridSize + this.row(y);
+    }
+
+    private long gridId(PointSet points, int i) {
+        Geometry g = points.getGeometry(i);
+        return g == null ? this.gridId(points.getX(i), points.getY(i)) : this.gridId(g);
+    }
+
+    private long gridId(Geometry g) {
+        if (g instanceof Point) {
+            Coordinate c = g.getCoordinate();
+            return c == null ? -1 : this.gridId(c.x, c.y);
+        }
+        Envelope e = g.getEnvelopeInternal();
+        if (e.isNull()) {
+            return -1;
+        }
+        long lower = this.gridId(e.getMinX(), e.getMinY());
+        return lower == this.gridId(e.getMaxX(), e.getMaxY()) ? lower : -1;
+    }
+
+    private int column(double x) {
+        return this.index(x, this.minX, this.cellWidth);
+    }
+
+    private int row(double y) {
+        return this.index(y, this.minY, this.cellHeight);
+    }
+
+    private int index(double v, double min, double cellSize) {
+        if (cellSize <= 0) { // All points on a line, so the box has no width (or height)
+            return 0;
+        }
+        int i = (int) Math.floor((v - min) / cellSize);
+        // Points on the maximum edge of the grid go in the last cell
+        return Math.max(0, Math.min(i, this.gridSize - 1));
+    }
+
+    /** The grid id (<code>column * gridSize + row</code>) of an area (occupied cell) */
+    long getCellId(int area) {
+        return this.cellIds[area];
+    }
+
+    /** The column of the grid that an area (occupied cell) is in */
+    public int getColumn(int area) {
+        return (int) (this.cellIds[area] / this.gridSize);
+    }
+
+    /** The row of the grid that an area (occupied cell) is in */
+    public int getRow(int area) {
+        return (int) (this.cellIds[area] % this.gridSize);
+    }
+
+    /** The number of cells along each side of the grid */
+    public int getGridSize() {
+        return this.gridSize;
+    }
+
+    /** The area covered by the grid */
+    public Cell getBoundingBox() {
+        return new Cell(this.minX, this.minY, this.maxX, this.maxY);
+    }
+
+    /**
+     * Create the polygon for an area. This isn't stored, so call it once when the polygon
+     * is needed (e.g. when writing the area out).
+     * @param area The area id.
+     */
+    public Geometry createGeometry(int area) {
+        return this.createCellGeometry(this.cellIds[area]);
+    }
+
+    /**
+     * Create the polygon for any cell in the grid, including empty ones.
+     * @param cellId The grid id of the cell (<code>column * gridSize + row</code>).
+     */
+    Geometry createCellGeometry(long cellId) {
+        double x = this.minX + (cellId / this.gridSize) * this.cellWidth;
+        double y = this.minY + (cellId % this.gridSize) * this.cellHeight;
+        return new Cell(x, y, x + this.cellWidth, y + this.cellHeight).createGeometry();
+    }
+
+    public int[] countPointsWithin(PointSet points) {
+        int[] counts = new int[this.size()];
+        for (int i = 0; i < points.size(); i++) {
+            int id = this.locate(points, i);
+            if (id != NO_AREA) {
+                counts[id]++;
+            }
+        }
+        return counts;
+    }
+
+    public IntBuffer assignPoints(PointSet points) {
+        IntBuffer ids = OffHeap.allocateInts(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            ids.put(i, this.locate(points, i));
+        }
+        return ids;
+    }
+
+    /** Cells don't overlap, so this is always 0 */
+    public int getNumOverlappingPoints() {
+        return 0;
+    }
+
+    /** The number of occupied cells */
+    public int size() {
+        return this.cellIds.length;
+    }
+
+    /** The total number of cells in the grid, including those that are empty */
+    public long getNumCells() {
+        return (long) this.gridSize * this.gridSize;
+    }
+}
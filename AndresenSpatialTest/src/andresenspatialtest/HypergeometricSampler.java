@@ -0,0 +1,186 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws the per-area counts of an X% sample of the test points without looking at the
+ * points themselves.
+ * <p>
+ * Taking a sample without replacement and counting the sampled points in each area gives
+ * counts that follow a multivariate hypergeometric distribution over the number of test
+ * points in each area. That can be drawn directly, one area at a time: the number from the
+ * first area is a (univariate) hypergeometric draw from all the points, the number from the
+ * second is a draw from the points that are left, and so on. Points that aren't in any area
+ * are treated as one extra area at the end. Each sample therefore costs O(areas) rather
+ * than O(points).
+ * <p>
+ * Univariate draws use the algorithms from numpy: simple sequential sampling for small
+ * samples and the ratio-of-uniforms method (HRUA, Stadlober 1989) otherwise.
+ * @author Nick Malleson
+ */
+class HypergeometricSampler implements Sampler {
+
+    /** The number of test points in each area */
+    private int[] allCounts;
+    /** The total number of test points (including those not in any area) */
+    private int totalPoints;
+    /** The number of points in a sample */
+    private int sampleSize;
+
+    /**
+     * Create a sampler.
+     * @param allCounts The total number of test points in each area.
+     * @param totalPoints The total number of test points, including any that aren't in an area.
+     * @param percentage The percentage of points to keep in each sample.
+     */
+    HypergeometricSampler(int[] allCounts, int totalPoints, int percentage) {
+        this.allCounts = allCounts;
+        this.totalPoints = totalPoints;
+        // (Same rounding as PointSampler)
+        int numPointsToRemove = (int) Math.round(totalPoints * ((100 - percentage) / 100.0));
+        this.sampleSize = totalPoints - numPointsToRemove;
+    }
+
+    public void sample(SplittableRandom random, int[] counts) {
+        int remainingPoints = this.totalPoints; // Points not yet considered
+        int remainingSample = this.sampleSize; // Points still to be drawn
+        for (int i = 0; i < this.allCounts.length; i++) {
+            int inArea = this.allCounts[i];
+            int drawn = remainingSample == 0 ? 0 : hypergeometric(random, inArea, remainingPoints - inArea, remainingSample);
+            counts[i] = drawn;
+            remainingPoints -= inArea;
+            remainingSample -= drawn;
+        }
+        // Anything left in remainingSample was drawn from the points outside all areas
+    }
+
+    public int getSampleSize() {
+        return this.sampleSize;
+    }
+
+    /**
+     * Draw from a hypergeometric distribution: the number of 'good' items in a sample of
+     * <code>sample</code> items drawn without replacement from <code>good + bad</code> items.
+     */
+    static int hypergeometric(SplittableRandom random, int good, int bad, int sample) {
+        if (good == 0 || sample == 0) {
+            return 0;
+        }
+        if (bad == 0) {
+            return sample;
+        }
+        if (sample >= 10 && sample <= good + bad - 10) {
+            return hypergeometricHrua(random, good, bad, sample);
+        }
+        return hypergeometricSequential(random, good, bad, sample);
+    }
+
+    /** Draw items one at a time. Used when the sample (or the part not sampled) is small. */
+    private static int hypergeometricSequential(SplittableRandom random, int good, int bad, int sample) {
+        int total = good + bad;
+        // Draw whichever of the sample or the remainder is smaller
+        int toDraw = sample > total / 2 ? total - sample : sample;
+        int remainingTotal = total;
+        int remainingGood = good;
+        while (toDraw > 0 && remainingGood > 0 && remainingTotal > remainingGood) {
+            if (random.nextInt(remainingTotal) < remainingGood) {
+                remainingGood--;
+            }
+            remainingTotal--;
+            toDraw--;
+        }
+        if (remainingTotal == remainingGood) { // Only good items are left
+            remainingGood -= toDraw;
+        }
+        return sample > total / 2 ? remainingGood : good - remainingGood;
+    }
+
+    private static final double D1 = 1.7155277699214135; // 2*sqrt(2/e)
+    private static final double D2 = 0.8989161620588988; // 3 - 2*sqrt(3/e)
+
+    /** Ratio-of-uniforms draw, which takes (on average) constant time however big the inputs are. */
+    private static int hypergeometricHrua(SplittableRandom random, int good, int bad, int sample) {
+        long popSize = (long) good + bad;
+        int computedSample = (int) Math.min(sample, popSize - sample);
+        int minGoodBad = Math.min(good, bad);
+        int maxGoodBad = Math.max(good, bad);
+
+        double p = (double) minGoodBad / popSize;
+        double q = (double) maxGoodBad / popSize;
+        double mu = computedSample * p; // Mean
+        double a = mu + 0.5;
+        double var = (double) (popSize - computedSample) * computedSample * p * q / (popSize - 1); // Variance
+        double c = Math.sqrt(var + 0.5);
+        double h = D1 * c + D2;
+        int m = (int) Math.floor((double) (computedSample + 1) * (minGoodBad + 1) / (popSize + 2)); // Mode
+        double g = logFactorial(m) + logFactorial(minGoodBad - m) + logFactorial(computedSample - m)
+                + logFactorial(maxGoodBad - computedSample + m);
+        // Upper bound for the draw (the end of the support, or 16 standard deviations from the mean)
+        double b = Math.min(Math.min(computedSample, minGoodBad) + 1, Math.floor(a + 16 * c));
+
+        int k;
+        while (true) {
+            double u = random.nextDouble();
+            double v = random.nextDouble();
+            double x = a + h * (v - 0.5) / u;
+            if (x < 0.0 || x >= b) { // Fast rejection
+                continue;
+            }
+            k = (int) Math.floor(x);
+            double gp = logFactorial(k) + logFactorial(minGoodBad - k) + logFactorial(computedSample - k)
+                    + logFactorial(maxGoodBad - computedSample + k);
+            double t = g - gp;
+            if (u * (4.0 - u) - 3.0 <= t) { // Fast acceptance
+                break;
+            }
+            if (u * (u - t) >= 1) { // Fast rejection
+                continue;
+            }
+            if (2.0 * Math.log(u) <= t) { // Acceptance
+                break;
+            }
+        }
+
+        // Undo the swaps made to sample from the smaller group and the smaller sample
+        if (good > bad) {
+            k = computedSample - k;
+        }
+        if (computedSample < sample) {
+            k = good - k;
+        }
+        return k;
+    }
+
+    /** Table of log(k!) for small k, bigger values use Stirling's approximation */
+    private static final double[] LOG_FACTORIALS = new double[126];
+
+    static {
+        for (int i = 2; i < LOG_FACTORIALS.length; i++) {
+            LOG_FACTORIALS[i] = LOG_FACTORIALS[i - 1] + Math.log(i);
+        }
+    }
+
+    private static final double HALF_LOG_2PI = 0.91893853320467267;
+
+    static double logFactorial(int k) {
+        if (k < LOG_FACTORIALS.length) {
+            return LOG_FACTORIALS[k];
+        }
+        return (k + 0.5) * Math.log(k) - k + (HALF_LOG_2PI + (1.0 / k) * (1 / 12.0 - 1 / (360.0 * k * k)));
+    }
+}
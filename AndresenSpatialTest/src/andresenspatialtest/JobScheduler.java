@@ -0,0 +1,122 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many tests at the same time in one JVM.
+ * <p>
+ * Tests are queued and at most <code>maxConcurrentJobs</code> of them run at once, each on
+ * its own thread, which does the reading and writing of files. The CPU-heavy parts (decoding
+ * points and the Monte-Carlo simulation) of all the tests share one <code>ForkJoinPool</code>,
+ * so running more tests doesn't mean more threads competing for the processors. The tests also
+ * share a <code>DatasetCache</code>, so point and area files that more than one test uses are
+ * only read once, and a <code>MemoryBudget</code> that stops too many tests from allocating
+ * their working memory at the same time.
+ * @author Nick Malleson
+ */
+public class JobScheduler {
+
+    private ExecutorService jobs;
+    private ForkJoinPool pool;
+    private DatasetCache cache;
+    private MemoryBudget memoryBudget;
+
+    /**
+     * Create a scheduler.
+     * @param maxConcurrentJobs The maximum number of tests to run at once.
+     * @param cpuThreads The number of threads for the CPU-heavy work of all the tests.
+     * @param memoryBudget The number of bytes of working memory the tests can use at once.
+     * @param maxDatasets The maximum number of point and area files to keep in memory.
+     */
+    public JobScheduler(int maxConcurrentJobs, int cpuThreads, long memoryBudget, int maxDatasets) {
+        this.jobs = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.pool = new ForkJoinPool(cpuThreads);
+        this.cache = new DatasetCache(maxDatasets);
+        this.memoryBudget = new MemoryBudget(memoryBudget);
+    }
+
+    /**
+     * Queue a test to run.
+     * @param st The test, with all its parameters set. Its thread count, dataset cache and
+     * memory budget are replaced by the scheduler's.
+     * @return The result of <code>runAlgorithm()</code> once the test has run.
+     */
+    public Future<Boolean> submit(final SpatialTestAlg st) {
+        return this.submit(st, new Callable<Boolean>() {
+
+            public Boolean call() throws Exception {
+                return st.runAlgorithm();
+            }
+        });
+    }
+
+    /**
+     * Queue a job that runs a test, for callers that need to do more than just run it (e.g.
+     * record when it starts and finishes).
+     * @param st The test, set up to use the scheduler in the same way as <code>submit(SpatialTestAlg)</code>.
+     * @param job Runs the test.
+     * @return The result of the job once it has run.
+     */
+    public <T> Future<T> submit(SpatialTestAlg st, Callable<T> job) {
+        st.setPool(this.pool);
+        st.setDatasetCache(this.cache);
+        st.setMemoryBudget(this.memoryBudget);
+        return this.jobs.submit(job);
+    }
+
+    /** Stop accepting tests. Tests that have already been queued still run. */
+    public void shutdown() {
+        this.jobs.shutdown();
+    }
+
+    /**
+     * Stop straight away: queued tests are dropped and running ones are interrupted.
+     */
+    public void shutdownNow() {
+        this.jobs.shutdownNow();
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * Wait for all the queued tests to finish after <code>shutdown()</code>, then stop the
+     * shared threads.
+     * @return true if the tests finished, false if the time ran out.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean finished = this.jobs.awaitTermination(timeout, unit);
+        if (finished) {
+            this.pool.shutdown();
+        }
+        return finished;
+    }
+
+    public DatasetCache getDatasetCache() {
+        return this.cache;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return this.memoryBudget;
+    }
+}
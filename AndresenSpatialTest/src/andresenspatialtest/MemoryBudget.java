@@ -0,0 +1,71 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+/**
+ * A limit on the memory used by tests that run at the same time (see
+ * <code>JobScheduler</code>). Before a test allocates its working memory (the Monte-Carlo
+ * counts and samplers) it reserves an estimate of the size; if there isn't enough left it
+ * waits until other tests have finished and released theirs. Point and area data shared
+ * through a <code>DatasetCache</code> aren't counted, they are limited by the size of the cache.
+ * @author Nick Malleson
+ */
+public class MemoryBudget {
+
+    private final long total;
+    private long used = 0;
+
+    /**
+     * Create a budget.
+     * @param total The number of bytes that can be reserved at once.
+     */
+    public MemoryBudget(long total) {
+        this.total = total;
+    }
+
+    /**
+     * Reserve memory, waiting until enough is available.
+     * @param bytes The number of bytes to reserve.
+     * @throws IllegalArgumentException If more than the total budget is asked for (it could
+     * never be reserved).
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytes > this.total) {
+            throw new IllegalArgumentException("Need " + bytes + " bytes but the memory budget is only "
+                    + this.total + " bytes");
+        }
+        while (this.used + bytes > this.total) {
+            this.wait();
+        }
+        this.used += bytes;
+    }
+
+    /** Release memory that was reserved by <code>acquire()</code> */
+    public synchronized void release(long bytes) {
+        this.used -= bytes;
+        this.notifyAll();
+    }
+
+    /** The number of bytes that are reserved at the moment */
+    public synchronized long getUsed() {
+        return this.used;
+    }
+
+    public long getTotal() {
+        return this.total;
+    }
+}
@@ -0,0 +1,150 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a range of Monte-Carlo iterations, splitting the range in two and running the
+ * halves in parallel until there is only one iteration left to run. Used by
+ * <code>SpatialTestAlg</code> to run every iteration, and by each <code>MonteCarloWorker</code>
+ * process to run its share of them.
+ * @author Nick Malleson
+ */
+class MonteCarloTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private Simulation simulation; // The things that all the tasks share
+    private int from; // The first run to do (inclusive)
+    private int to; // The last run to do (exclusive)
+
+    /**
+     * Create a task to run some of the Monte-Carlo iterations.
+     * @param testAreaIds The area id of every test point (not used with hypergeometric sampling).
+     * @param numTestPoints The number of test points.
+     * @param testCounts The number of test points in each area.
+     * @param samplePercentage The percentage of test points in each sample.
+     * @param hypergeometricSampling Whether to draw the counts of each sample directly (see
+     * <code>HypergeometricSampler</code>) rather than sampling the points.
+     * @param runRandoms The random numbers for each run (see <code>createRunRandoms()</code>).
+     * @param runCounts Where to store the counts from each run.
+     * @param from The first run to do (inclusive).
+     * @param to The last run to do (exclusive).
+     * @param console Told when each run has finished (can be null).
+     */
+    MonteCarloTask(IntBuffer testAreaIds, int numTestPoints, int[] testCounts, int samplePercentage,
+            boolean hypergeometricSampling, SplittableRandom[] runRandoms, RunCounts runCounts,
+            int from, int to, ConsoleWriter console) {
+        this.simulation = new Simulation();
+        this.simulation.testAreaIds = testAreaIds;
+        this.simulation.numTestPoints = numTestPoints;
+        this.simulation.testCounts = testCounts;
+        this.simulation.samplePercentage = samplePercentage;
+        this.simulation.hypergeometricSampling = hypergeometricSampling;
+        this.simulation.runRandoms = runRandoms;
+        this.simulation.runCounts = runCounts;
+        this.simulation.console = console;
+        this.from = from;
+        this.to = to;
+    }
+
+    private MonteCarloTask(Simulation simulation, int from, int to) {
+        this.simulation = simulation;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Create the random numbers for some of the runs. Each run gets its own stream of random
+     * numbers, split in order from the seed, so the results only depend on the seed and not on
+     * how the runs are shared between threads (or processes: a process that only does the later
+     * runs splits off, and throws away, the streams for the runs before them).
+     * @param seed The seed for the whole simulation.
+     * @param from The first run (inclusive).
+     * @param to The last run (exclusive).
+     * @return An array with the random numbers for run i at position i (earlier positions are null).
+     */
+    static SplittableRandom[] createRunRandoms(long seed, int from, int to) {
+        SplittableRandom seedRandom = new SplittableRandom(seed);
+        SplittableRandom[] runRandoms = new SplittableRandom[to];
+        for (int i = 0; i < to; i++) {
+            SplittableRandom r = seedRandom.split();
+            if (i >= from) {
+                runRandoms[i] = r;
+            }
+        }
+        return runRandoms;
+    }
+
+    @Override
+    protected void compute() {
+        if (this.to - this.from > 1) {
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new MonteCarloTask(this.simulation, this.from, mid),
+                    new MonteCarloTask(this.simulation, mid, this.to));
+            return;
+        }
+        Simulation s = this.simulation;
+        Scratch scratch = s.scratch.poll();
+        if (scratch == null) {
+            scratch = new Scratch();
+            scratch.sampler = s.hypergeometricSampling
+                    ? new HypergeometricSampler(s.testCounts, s.numTestPoints, s.samplePercentage)
+                    : new PointSampler(s.testAreaIds, s.numTestPoints, s.testCounts, s.samplePercentage);
+            scratch.sampleCounts = new int[s.testCounts.length];
+        }
+        for (int i = this.from; i < this.to; i++) {
+            /* Sample X% points from the test data and find how many are within each area */
+            scratch.sampler.sample(s.runRandoms[i], scratch.sampleCounts);
+            s.runCounts.setRun(i, scratch.sampleCounts);
+            int completed = s.completed.incrementAndGet();
+            if (s.console != null) {
+                s.console.writeToConsole("\tCompleted run " + completed, false);
+            }
+        }
+        s.scratch.add(scratch);
+    }
+
+    /** The inputs and outputs of a simulation, shared by all the tasks that run it */
+    private static class Simulation {
+
+        private IntBuffer testAreaIds;
+        private int numTestPoints;
+        private int[] testCounts;
+        private int samplePercentage;
+        private boolean hypergeometricSampling;
+        private SplittableRandom[] runRandoms; // Random numbers for each run
+        private RunCounts runCounts; // Where to store the counts from each run
+        private AtomicInteger completed = new AtomicInteger(); // The number of runs that have finished
+        // Samplers (and count buffers) that aren't being used. There are never more than one
+        // per thread, and they can be garbage collected when the simulation ends even if the
+        // pool is shared.
+        private ConcurrentLinkedQueue<Scratch> scratch = new ConcurrentLinkedQueue<Scratch>();
+        private ConsoleWriter console;
+    }
+
+    /** A sampler and the array it counts each sample into, used by one task at a time */
+    private static class Scratch {
+
+        private Sampler sampler;
+        private int[] sampleCounts; // (Copied by RunCounts.setRun(), so it can be reused)
+    }
+}
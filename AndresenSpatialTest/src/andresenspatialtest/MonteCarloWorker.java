@@ -0,0 +1,195 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs some of the Monte-Carlo iterations of a test in a separate process. Workers are
+ * started by a <code>WorkerPool</code>, each with its own range of runs; as every run has its
+ * own stream of random numbers (see <code>MonteCarloTask.createRunRandoms()</code>) the
+ * results are the same as if all the runs were done in one process. Each worker has its own
+ * heap and garbage collector, so big simulations aren't limited by a single JVM.
+ * <p>
+ * The input file is written by the pool and memory-mapped by every worker, so the area ids
+ * of the test points are shared rather than copied to each process. It is little-endian
+ * binary: the magic number, a version, the number of areas and of test points, the sample
+ * percentage, whether to use hypergeometric sampling (1 or 0), the number of outliers that
+ * will be removed (or -1 if the counts from every run are needed), the seed (a long) and four
+ * unused bytes, then the number of test points in each area and (unless hypergeometric
+ * sampling is used) the area id of every test point.
+ * <p>
+ * The worker writes its output file in the same way: the magic number, a version and its
+ * first and last (exclusive) runs, then either the counts for every area from each run
+ * (one run after another) or, if there are outliers to remove, the smallest and largest
+ * counts for every area (see <code>StreamingBounds.save()</code>).
+ * <p>
+ * Usage: <code>MonteCarloWorker input output from to threads</code>. Progress messages are
+ * written to the standard output. The exit code is 0 if the runs were done.
+ * @author Nick Malleson
+ */
+public class MonteCarloWorker {
+
+    static final int INPUT_MAGIC = 0x574d5453; // "STMW" when read as little-endian bytes
+    static final int OUTPUT_MAGIC = 0x524d5453; // "STMR"
+    static final int VERSION = 1;
+    static final int INPUT_HEADER_SIZE = 40;
+    static final int OUTPUT_HEADER_SIZE = 16;
+
+    private MonteCarloWorker() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 5) {
+            System.err.println("Usage: MonteCarloWorker input output from to threads");
+            System.exit(2);
+        }
+        try {
+            run(new File(args[0]), new File(args[1]), Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Do some of the runs.
+     * @param input The file written by the pool.
+     * @param output The file to write the results to.
+     * @param from The first run to do (inclusive).
+     * @param to The last run to do (exclusive).
+     * @param threads The number of threads to do the runs with.
+     */
+    static void run(File input, File output, int from, int to, int threads) throws IOException {
+        ByteBuffer in = map(input, FileChannel.MapMode.READ_ONLY, input.length());
+        if (in.getInt(0) != INPUT_MAGIC || in.getInt(4) != VERSION) {
+            throw new IOException(input + " isn't a worker input file (or is from a different version)");
+        }
+        int numAreas = in.getInt(8);
+        int numTestPoints = in.getInt(12);
+        int samplePercentage = in.getInt(16);
+        boolean hypergeometricSampling = in.getInt(20) != 0;
+        int numToRemove = in.getInt(24);
+        long seed = in.getLong(28);
+        in.position(INPUT_HEADER_SIZE);
+        IntBuffer ints = in.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int[] testCounts = new int[numAreas];
+        ints.get(testCounts);
+        IntBuffer testAreaIds = hypergeometricSampling ? null : ints.slice(); // (Straight from the mapped file)
+
+        ByteBuffer out = null;
+        RunCounts runCounts;
+        if (numToRemove < 0) {
+            // Every count is needed, write them straight into the output file
+            out = map(output, FileChannel.MapMode.READ_WRITE, OUTPUT_HEADER_SIZE + 4L * numAreas * (to - from));
+            runCounts = new MappedCounts(out, numAreas, from);
+        }
+        else {
+            runCounts = new StreamingBounds(numAreas, numToRemove);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new MonteCarloTask(testAreaIds, numTestPoints, testCounts, samplePercentage,
+                    hypergeometricSampling, MonteCarloTask.createRunRandoms(seed, from, to), runCounts,
+                    from, to, new ConsoleWriter() {
+
+                public void writeToConsole(String text, boolean error) {
+                    System.out.println(text);
+                }
+
+                public void writeToConsole(StackTraceElement[] stackTrace) {
+                }
+            }));
+        }
+        finally {
+            pool.shutdown();
+        }
+        if (out == null) {
+            StreamingBounds bounds = (StreamingBounds) runCounts;
+            out = map(output, FileChannel.MapMode.READ_WRITE, OUTPUT_HEADER_SIZE + 4L * bounds.getSavedSize());
+            out.position(OUTPUT_HEADER_SIZE);
+            bounds.save(out.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+        }
+        out.putInt(0, OUTPUT_MAGIC).putInt(4, VERSION).putInt(8, from).putInt(12, to);
+    }
+
+    /**
+     * Memory-map a file (creating it, or changing its length, if it is opened for writing).
+     * @return The buffer, in little-endian order.
+     */
+    static ByteBuffer map(File file, FileChannel.MapMode mode, long bytes) throws IOException {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Too much data (" + bytes + " bytes) to map " + file.getName()
+                    + ", use streaming bounds or more worker processes");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (mode != FileChannel.MapMode.READ_ONLY) {
+                raf.setLength(bytes);
+            }
+            // (The mapping stays valid after the file is closed)
+            return raf.getChannel().map(mode, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Stores the counts from each run in the (memory-mapped) output file, one run after
+     * another, rather than on the heap. The bounds are worked out by the process that
+     * started the worker, once it has the counts from every worker.
+     */
+    private static class MappedCounts implements RunCounts {
+
+        private IntBuffer counts;
+        private int numAreas;
+        private int from; // The first run that this worker does
+
+        MappedCounts(ByteBuffer out, int numAreas, int from) {
+            out.position(OUTPUT_HEADER_SIZE);
+            this.counts = out.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            this.numAreas = numAreas;
+            this.from = from;
+        }
+
+        public void setRun(int run, int[] areaCounts) {
+            int start = (run - this.from) * this.numAreas;
+            for (int a = 0; a < this.numAreas; a++) {
+                this.counts.put(start + a, areaCounts[a]);
+            }
+        }
+
+        /** The total of the first run that this worker does */
+        public int getFirstRunTotal() {
+            int total = 0;
+            for (int a = 0; a < this.numAreas; a++) {
+                total += this.counts.get(a);
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Creates buffers that are stored outside the Java heap, for data that grows with the
+ * number of points (coordinates and area ids), so the heap doesn't have to be big enough
+ * for all the points and the garbage collector never has to copy them.
+ * <p>
+ * Buffers are normally direct buffers, which are limited by
+ * <code>-XX:MaxDirectMemorySize</code> (by default the same as <code>-Xmx</code>). Only if
+ * that limit is reached is a buffer memory-mapped from a temporary file instead, so it can
+ * spill to disk. Temporary files are deleted straight away where the system allows it.
+ * Windows doesn't allow a mapped file to be deleted (even when the program exits), so
+ * files left behind by earlier runs are deleted the next time a file is needed.
+ * <p>
+ * A buffer can hold up to 2GB, i.e. about 268 million doubles or 536 million ints.
+ * @author Nick Malleson
+ */
+class OffHeap {
+
+    private static final String PREFIX = "spatialtest";
+    private static final String SUFFIX = ".buf";
+    /** Whether the files left behind by earlier runs have been deleted */
+    private static boolean cleanedUp = false;
+
+    private OffHeap() {
+    }
+
+    /**
+     * Create a new off-heap buffer (filled with zeros) with native byte order.
+     * @param bytes The size of the buffer.
+     * @throws IllegalArgumentException If the buffer would be larger than 2GB.
+     * @throws IllegalStateException If the temporary file can't be created.
+     */
+    static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot create an off-heap buffer of " + bytes + " bytes");
+        }
+        try {
+            return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        }
+        catch (OutOfMemoryError e) { // Direct memory limit reached
+            return map(bytes);
+        }
+    }
+
+    /** Create a buffer memory-mapped from a temporary file */
+    private static ByteBuffer map(long bytes) {
+        try {
+            deleteOldFiles();
+            File file = File.createTempFile(PREFIX, SUFFIX);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            ByteBuffer buffer;
+            try {
+                raf.setLength(bytes);
+                // (The mapping stays valid after the file is closed)
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            finally {
+                raf.close();
+            }
+            file.delete(); // (Fails on Windows, deleteOldFiles() gets it next time)
+            return buffer.order(ByteOrder.nativeOrder());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not create an off-heap buffer of " + bytes + " bytes", e);
+        }
+    }
+
+    /**
+     * Delete the temporary files that earlier runs couldn't delete. Files that another
+     * program still has mapped can't be deleted on the systems that leave them behind, so
+     * they are safe.
+     */
+    private static synchronized void deleteOldFiles() {
+        if (cleanedUp) {
+            return;
+        }
+        cleanedUp = true;
+        File[] old = new File(System.getProperty("java.io.tmpdir")).listFiles();
+        if (old == null) {
+            return;
+        }
+        for (File f : old) {
+            if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX)) {
+                f.delete();
+            }
+        }
+    }
+
+    /** Create an off-heap buffer for <code>n</code> doubles */
+    static DoubleBuffer allocateDoubles(int n) {
+        return allocate(8L * n).asDoubleBuffer();
+    }
+
+    /** Create an off-heap buffer for <code>n</code> ints */
+    static IntBuffer allocateInts(int n) {
+        return allocate(4L * n).asIntBuffer();
+    }
+
+    /**
+     * Copy a buffer of doubles into a new, larger, off-heap buffer.
+     * @param buffer The buffer to copy (all of it is copied, whatever its position).
+     * @param n The size of the new buffer.
+     */
+    static DoubleBuffer grow(DoubleBuffer buffer, int n) {
+        DoubleBuffer copy = allocateDoubles(n);
+        DoubleBuffer source = buffer.duplicate();
+        source.clear();
+        copy.put(source);
+        copy.clear();
+        return copy;
+    }
+
+    /**
+     * Copy the first <code>n</code> ints of a buffer into a new off-heap buffer.
+     */
+    static IntBuffer copy(IntBuffer buffer, int n) {
+        IntBuffer copy = allocateInts(n);
+        IntBuffer source = buffer.duplicate();
+        source.clear();
+        source.limit(n);
+        copy.put(source);
+        copy.clear();
+        return copy;
+    }
+}
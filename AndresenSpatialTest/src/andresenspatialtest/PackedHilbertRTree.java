@@ -0,0 +1,383 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A static R-tree over the bounding boxes of a list of areas, stored in flat arrays so it
+ * can be saved to a file and memory-mapped again without rebuilding it.
+ * <p>
+ * The areas are sorted by the position of the centre of their bounding box along a
+ * Hilbert curve, so that areas that are close together end up next to each other, and
+ * packed into leaves of <code>NODE_SIZE</code> boxes. Each level above is built in the same
+ * way from the level below until there is a single root. Every node is a box and an int:
+ * for leaves the int is the position of the area in the list, for other nodes it is the
+ * position of the node's first child (its children are the next <code>NODE_SIZE</code>
+ * nodes in the level below).
+ * <p>
+ * The file is little-endian binary: a header (magic number, version, the numbers of items,
+ * nodes and levels, and the length and modification time of the shapefile that the tree
+ * was built from, used to tell if the tree is out of date), the position of the end of
+ * each level, then the boxes (<code>minX, minY, maxX, maxY</code> for every node) and the
+ * ints.
+ * @author Nick Malleson
+ */
+class PackedHilbertRTree {
+
+    /** The maximum number of children of a node */
+    static final int NODE_SIZE = 16;
+    private static final int MAGIC = 0x54524853; // "SHRT" when read as little-endian bytes
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    private int numItems;
+    private int numNodes;
+    /** The position after the last node of each level (the leaves are level 0) */
+    private int[] levelBounds;
+    /** The box of every node, 4 values per node */
+    private DoubleBuffer boxes;
+    /** The item (for leaves) or first child (for other nodes) of every node */
+    private IntBuffer indices;
+    /** The whole tree, in the same layout as the file */
+    private ByteBuffer data;
+
+    private PackedHilbertRTree() {
+    }
+
+    /**
+     * Build a tree over the areas' bounding boxes.
+     * @param areas The areas, the positions in this list are returned by <code>search()</code>.
+     */
+    static PackedHilbertRTree build(List<Area> areas) {
+        int n = areas.size();
+        double[] itemBoxes = new double[4 * n];
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            Envelope e = areas.get(i).geometry.getEnvelopeInternal();
+            itemBoxes[4 * i] = e.getMinX();
+            itemBoxes[4 * i + 1] = e.getMinY();
+            itemBoxes[4 * i + 2] = e.getMaxX();
+            itemBoxes[4 * i + 3] = e.getMaxY();
+            minX = Math.min(minX, e.getMinX());
+            minY = Math.min(minY, e.getMinY());
+            maxX = Math.max(maxX, e.getMaxX());
+            maxY = Math.max(maxY, e.getMaxY());
+        }
+
+        // Sort the items by the Hilbert value of their centres, scaled to a 65536 x 65536 grid.
+        // (The Hilbert value goes in the top of a long and the item in the bottom so they sort together)
+        double scaleX = maxX > minX ? 65535 / (maxX - minX) : 0;
+        double scaleY = maxY > minY ? 65535 / (maxY - minY) : 0;
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) (((itemBoxes[4 * i] + itemBoxes[4 * i + 2]) / 2 - minX) * scaleX);
+            int y = (int) (((itemBoxes[4 * i + 1] + itemBoxes[4 * i + 3]) / 2 - minY) * scaleY);
+            order[i] = (hilbert(x, y) & 0xffffffffL) << 32 | i;
+        }
+        Arrays.sort(order);
+
+        // Work out how many nodes there are on each level
+        int[] bounds = new int[32];
+        int numLevels = 0;
+        int numNodes = n;
+        int levelSize = n;
+        bounds[numLevels++] = numNodes;
+        while (levelSize > 1) {
+            levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+            numNodes += levelSize;
+            bounds[numLevels++] = numNodes;
+        }
+
+        PackedHilbertRTree tree = new PackedHilbertRTree();
+        tree.allocate(n, numNodes, Arrays.copyOf(bounds, numLevels));
+        for (int pos = 0; pos < n; pos++) {
+            int item = (int) order[pos];
+            tree.setNode(pos, itemBoxes[4 * item], itemBoxes[4 * item + 1],
+                    itemBoxes[4 * item + 2], itemBoxes[4 * item + 3], item);
+        }
+        // Build each level from the one below
+        int pos = 0;
+        int parent = n;
+        for (int level = 0; level < numLevels - 1; level++) {
+            int end = tree.levelBounds[level];
+            while (pos < end) {
+                int first = pos;
+                double nodeMinX = Double.POSITIVE_INFINITY, nodeMinY = Double.POSITIVE_INFINITY;
+                double nodeMaxX = Double.NEGATIVE_INFINITY, nodeMaxY = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < NODE_SIZE && pos < end; i++, pos++) {
+                    nodeMinX = Math.min(nodeMinX, tree.boxes.get(4 * pos));
+                    nodeMinY = Math.min(nodeMinY, tree.boxes.get(4 * pos + 1));
+                    nodeMaxX = Math.max(nodeMaxX, tree.boxes.get(4 * pos + 2));
+                    nodeMaxY = Math.max(nodeMaxY, tree.boxes.get(4 * pos + 3));
+                }
+                tree.setNode(parent++, nodeMinX, nodeMinY, nodeMaxX, nodeMaxY, first);
+            }
+        }
+        return tree;
+    }
+
+    /** Create the buffer for a tree and write its header (apart from the shapefile details) */
+    private void allocate(int numItems, int numNodes, int[] levelBounds) {
+        this.numItems = numItems;
+        this.numNodes = numNodes;
+        this.levelBounds = levelBounds;
+        int boxesStart = boxesStart(levelBounds.length);
+        this.data = ByteBuffer.allocate(boxesStart + 36 * numNodes).order(ByteOrder.LITTLE_ENDIAN);
+        this.data.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, numItems).putInt(12, numNodes)
+                .putInt(16, levelBounds.length);
+        for (int i = 0; i < levelBounds.length; i++) {
+            this.data.putInt(HEADER_SIZE + 4 * i, levelBounds[i]);
+        }
+        this.setViews(boxesStart);
+    }
+
+    /** Where the boxes start, after the header and level bounds (rounded up so the doubles are aligned) */
+    private static int boxesStart(int numLevels) {
+        return (HEADER_SIZE + 4 * numLevels + 7) & ~7;
+    }
+
+    private void setViews(int boxesStart) {
+        this.data.position(boxesStart);
+        this.boxes = this.data.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.data.position(boxesStart + 32 * this.numNodes);
+        this.indices = this.data.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        this.data.position(0);
+    }
+
+    private void setNode(int pos, double minX, double minY, double maxX, double maxY, int index) {
+        this.boxes.put(4 * pos, minX);
+        this.boxes.put(4 * pos + 1, minY);
+        this.boxes.put(4 * pos + 2, maxX);
+        this.boxes.put(4 * pos + 3, maxY);
+        this.indices.put(pos, index);
+    }
+
+    /**
+     * Save the tree.
+     * @param file The file to write to (replaced if it exists).
+     * @param shapefile The shapefile that the areas were read from (to check later if the
+     * tree is out of date).
+     */
+    void write(File file, File shapefile) throws IOException {
+        this.data.putLong(24, shapefile.length()).putLong(32, shapefile.lastModified());
+        // Write to a temporary file and rename it, so a test running at the same time never
+        // opens a half-written tree
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        try {
+            ByteBuffer b = this.data.duplicate();
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+        }
+        finally {
+            channel.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Could not save the tree to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Memory-map a tree that was saved by <code>write()</code>.
+     * @param file The file that the tree was saved to.
+     * @param shapefile The shapefile that the areas were read from.
+     * @param numItems The number of areas.
+     * @return The tree, or null if the file doesn't exist or is out of date (the shapefile
+     * has changed since the tree was built).
+     */
+    static PackedHilbertRTree open(File file, File shapefile, int numItems) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer data;
+        try {
+            // (The mapping stays valid after the file is closed)
+            data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally {
+            raf.close();
+        }
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != numItems
+                || data.getLong(24) != shapefile.length() || data.getLong(32) != shapefile.lastModified()) {
+            return null;
+        }
+        PackedHilbertRTree tree = new PackedHilbertRTree();
+        tree.data = data;
+        tree.numItems = numItems;
+        tree.numNodes = data.getInt(12);
+        int numLevels = data.getInt(16);
+        if (file.length() != boxesStart(numLevels) + 36L * tree.numNodes) {
+            return null;
+        }
+        tree.levelBounds = new int[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            tree.levelBounds[i] = data.getInt(HEADER_SIZE + 4 * i);
+        }
+        tree.setViews(boxesStart(numLevels));
+        return tree;
+    }
+
+    /**
+     * Find the items whose boxes intersect the given box.
+     * @param results Where to put the items (cleared first).
+     */
+    void search(double minX, double minY, double maxX, double maxY, Results results) {
+        results.size = 0;
+        if (this.numItems == 0) {
+            return;
+        }
+        int[] stack = results.stack;
+        int stackSize = 0;
+        int nodeIndex = this.numNodes - 1; // Start at the root
+        int level = this.levelBounds.length - 1;
+        while (true) {
+            int end = Math.min(nodeIndex + NODE_SIZE, this.levelBounds[level]);
+            for (int pos = nodeIndex; pos < end; pos++) {
+                if (maxX < this.boxes.get(4 * pos) || maxY < this.boxes.get(4 * pos + 1)
+                        || minX > this.boxes.get(4 * pos + 2) || minY > this.boxes.get(4 * pos + 3)) {
+                    continue;
+                }
+                if (nodeIndex < this.numItems) { // A leaf
+                    results.add(this.indices.get(pos));
+                }
+                else { // Search the node's children later
+                    if (stackSize + 2 > stack.length) {
+                        stack = results.stack = Arrays.copyOf(stack, 2 * stack.length);
+                    }
+                    stack[stackSize++] = this.indices.get(pos);
+                    stack[stackSize++] = level - 1;
+                }
+            }
+            if (stackSize == 0) {
+                return;
+            }
+            level = stack[--stackSize];
+            nodeIndex = stack[--stackSize];
+        }
+    }
+
+    /** The number of items in the tree */
+    int size() {
+        return this.numItems;
+    }
+
+    /**
+     * The position of a point along a Hilbert curve filling a 65536 x 65536 grid (from
+     * "Fast Hilbert curve generation, sorting, and range queries" by rawrunprotected).
+     * @param x The column, 0-65535.
+     * @param y The row, 0-65535.
+     * @return The position, as an unsigned int.
+     */
+    static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >> 1);
+        int B = (a >> 1) ^ a;
+        int C = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+        int D = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >> 2)) ^ (b & (b >> 2)));
+        B = ((a & (b >> 2)) ^ (b & ((a ^ b) >> 2)));
+        C ^= ((a & (c >> 2)) ^ (b & (d >> 2)));
+        D ^= ((b & (c >> 2)) ^ ((a ^ b) & (d >> 2)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >> 4)) ^ (b & (b >> 4)));
+        B = ((a & (b >> 4)) ^ (b & ((a ^ b) >> 4)));
+        C ^= ((a & (c >> 4)) ^ (b & (d >> 4)));
+        D ^= ((b & (c >> 4)) ^ ((a ^ b) & (d >> 4)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        C ^= ((a & (c >> 8)) ^ (b & (d >> 8)));
+        D ^= ((b & (c >> 8)) ^ ((a ^ b) & (d >> 8)));
+
+        a = C ^ (C >> 1);
+        b = D ^ (D >> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+    /**
+     * Holds the results of a search, so that searches don't have to create new arrays.
+     * Each thread that searches the tree needs its own.
+     */
+    static class Results {
+
+        private int[] items = new int[8];
+        private int size = 0;
+        private int[] stack = new int[64];
+
+        private void add(int item) {
+            if (this.size == this.items.length) {
+                this.items = Arrays.copyOf(this.items, 2 * this.size);
+            }
+            this.items[this.size++] = item;
+        }
+
+        /** The number of items found */
+        int size() {
+            return this.size;
+        }
+
+        /** Get one of the items found */
+        int get(int i) {
+            return this.items[i];
+        }
+    }
+}
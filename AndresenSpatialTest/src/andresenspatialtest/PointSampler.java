@@ -0,0 +1,112 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Takes X% samples (without replacement) of the test points and counts how many of the
+ * sampled points are in each area.
+ * <p>
+ * A sample is drawn with a partial Fisher-Yates shuffle of a copy of the test points'
+ * area ids: only the first k positions are shuffled, which takes O(k) time rather than
+ * shuffling (or copying) the whole array. If more than half the points are kept then the
+ * points to drop are drawn instead and subtracted from the total counts, so a sample never
+ * costs more than half the number of points. The swaps are undone afterwards, so every
+ * sample starts from the same array and the result of a sample only depends on the random
+ * numbers used (not on the samples that were drawn before it).
+ * <p>
+ * The buffers are reused between samples, so a <code>PointSampler</code> must only be used
+ * by one thread at a time. They are stored off the heap, in direct buffers (see
+ * <code>OffHeap</code>), because there is one copy per thread and they grow with the number
+ * of test points.
+ * @author Nick Malleson
+ */
+class PointSampler implements Sampler {
+
+    /** The area id of every test point. Partially shuffled while drawing a sample. */
+    private IntBuffer ids;
+    /** The number of test points */
+    private int numPoints;
+    /** The positions that were swapped while drawing a sample, so the swaps can be undone. */
+    private IntBuffer swaps;
+    /** The number of test points in each area (i.e. the counts for a 100% sample) */
+    private int[] allCounts;
+    /** The number of points in a sample */
+    private int sampleSize;
+
+    /**
+     * Create a sampler.
+     * @param areaIds The area id of every test point (see <code>AreaLocator.assignPoints()</code>).
+     * This is copied so isn't changed by the sampler.
+     * @param numPoints The number of test points.
+     * @param allCounts The total number of test points in each area.
+     * @param percentage The percentage of points to keep in each sample.
+     */
+    PointSampler(IntBuffer areaIds, int numPoints, int[] allCounts, int percentage) {
+        this.ids = OffHeap.copy(areaIds, numPoints);
+        this.numPoints = numPoints;
+        this.allCounts = allCounts;
+        // (Same rounding as always used: remove round(X%) of the points, keep the rest)
+        int numPointsToRemove = (int) Math.round(numPoints * ((100 - percentage) / 100.0));
+        this.sampleSize = numPoints - numPointsToRemove;
+        this.swaps = OffHeap.allocateInts(Math.min(this.sampleSize, numPointsToRemove));
+    }
+
+    public void sample(SplittableRandom random, int[] counts) {
+        int n = this.numPoints;
+        boolean drawKept = this.sampleSize <= n - this.sampleSize; // Draw the smaller of kept/removed
+        int toDraw = drawKept ? this.sampleSize : n - this.sampleSize;
+
+        // Partial Fisher-Yates: after this ids[0..toDraw) are a random sample
+        for (int i = 0; i < toDraw; i++) {
+            int j = i + random.nextInt(n - i);
+            this.swaps.put(i, j);
+            swap(this.ids, i, j);
+        }
+
+        if (drawKept) {
+            Arrays.fill(counts, 0);
+            AreaIndex.countAreaIds(this.ids, 0, toDraw, counts);
+        }
+        else { // The points that were drawn are the ones to remove
+            System.arraycopy(this.allCounts, 0, counts, 0, counts.length);
+            for (int i = 0; i < toDraw; i++) {
+                int id = this.ids.get(i);
+                if (id != AreaIndex.NO_AREA) {
+                    counts[id]--;
+                }
+            }
+        }
+
+        // Undo the swaps (in reverse order) so the next sample starts from the same array
+        for (int i = toDraw - 1; i >= 0; i--) {
+            swap(this.ids, i, this.swaps.get(i));
+        }
+    }
+
+    private static void swap(IntBuffer buffer, int i, int j) {
+        int tmp = buffer.get(i);
+        buffer.put(i, buffer.get(j));
+        buffer.put(j, tmp);
+    }
+
+    public int getSampleSize() {
+        return this.sampleSize;
+    }
+}
@@ -0,0 +1,158 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import java.nio.DoubleBuffer;
+import java.util.List;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * A set of points stored as buffers of x and y coordinates, which takes much less memory
+ * than a JTS <code>Point</code> per point. The buffers are normally off the Java heap (see
+ * <code>OffHeap</code>) so the heap doesn't grow with the number of points.
+ * <p>
+ * Points read by the GeoTools reader can also keep their original geometries. This is only
+ * done if some of them aren't <code>Point</code>s, in which case the geometries (rather than
+ * their coordinates) are used to work out which areas they are in.
+ * @author Nick Malleson
+ */
+public class PointSet {
+
+    private DoubleBuffer xs;
+    private DoubleBuffer ys;
+    private int size;
+    /** The number of rows (or records) in the file that had no point and were left out */
+    private int numSkipped = 0;
+    /** Whether the coordinates are WGS84 longitudes and latitudes (e.g. from a police.uk CSV file) */
+    private boolean longitudeLatitude = false;
+    /** The original geometries, or null if they are all points */
+    private List<Geometry> geometries = null;
+
+    /**
+     * Create a set of points from buffers of coordinates.
+     * @param xs The x coordinates (absolute positions are used, so the buffer's position doesn't matter).
+     * @param ys The y coordinates.
+     * @param size The number of points (the buffers can be longer).
+     */
+    public PointSet(DoubleBuffer xs, DoubleBuffer ys, int size) {
+        this.xs = xs;
+        this.ys = ys;
+        this.size = size;
+    }
+
+    /**
+     * Create a set of points read from a file that had some rows without points in it.
+     * @param numSkipped The number of rows that were left out.
+     * @see #PointSet(DoubleBuffer, DoubleBuffer, int)
+     */
+    PointSet(DoubleBuffer xs, DoubleBuffer ys, int size, int numSkipped) {
+        this(xs, ys, size);
+        this.numSkipped = numSkipped;
+    }
+
+    /**
+     * Create a set of points from a list of geometries. The coordinates of each point are
+     * those of the first coordinate of the geometry.
+     */
+    public static PointSet fromGeometries(List<Geometry> geometries) {
+        DoubleBuffer xs = OffHeap.allocateDoubles(geometries.size());
+        DoubleBuffer ys = OffHeap.allocateDoubles(geometries.size());
+        boolean allPoints = true;
+        int i = 0;
+        for (Geometry g : geometries) {
+            Coordinate c = g.getCoordinate();
+            xs.put(i, c.x);
+            ys.put(i, c.y);
+            allPoints &= g instanceof Point;
+            i++;
+        }
+        PointSet points = new PointSet(xs, ys, i);
+        if (!allPoints) {
+            points.geometries = geometries;
+        }
+        return points;
+    }
+
+    /** The number of points */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * The number of rows (or records) in the file that the points were read from that
+     * didn't have a point and were left out, e.g. crimes without a location in a CSV file.
+     */
+    public int getNumSkipped() {
+        return this.numSkipped;
+    }
+
+    /**
+     * Whether the coordinates are known to be WGS84 longitudes (x) and latitudes (y), rather
+     * than in the projection of the file they were read from.
+     */
+    public boolean isLongitudeLatitude() {
+        return this.longitudeLatitude;
+    }
+
+    void setLongitudeLatitude(boolean longitudeLatitude) {
+        this.longitudeLatitude = longitudeLatitude;
+    }
+
+    /**
+     * Create a copy of the points in a different projection. (The original geometries, if
+     * there are any, aren't copied.)
+     * @param transform The transformation from the points' projection to the new one.
+     * @throws TransformException If a point can't be transformed.
+     */
+    PointSet transform(MathTransform transform) throws TransformException {
+        DoubleBuffer newXs = OffHeap.allocateDoubles(this.size);
+        DoubleBuffer newYs = OffHeap.allocateDoubles(this.size);
+        double[] block = new double[2 * 4096]; // Points are transformed a block at a time
+        for (int from = 0; from < this.size; from += 4096) {
+            int n = Math.min(4096, this.size - from);
+            for (int i = 0; i < n; i++) {
+                block[2 * i] = this.xs.get(from + i);
+                block[2 * i + 1] = this.ys.get(from + i);
+            }
+            transform.transform(block, 0, block, 0, n);
+            for (int i = 0; i < n; i++) {
+                newXs.put(from + i, block[2 * i]);
+                newYs.put(from + i, block[2 * i + 1]);
+            }
+        }
+        return new PointSet(newXs, newYs, this.size, this.numSkipped);
+    }
+
+    public double getX(int i) {
+        return this.xs.get(i);
+    }
+
+    public double getY(int i) {
+        return this.ys.get(i);
+    }
+
+    /**
+     * Get the original geometry of a point.
+     * @return The geometry, or null if the points are only stored as coordinates.
+     */
+    public Geometry getGeometry(int i) {
+        return this.geometries == null ? null : this.geometries.get(i);
+    }
+}
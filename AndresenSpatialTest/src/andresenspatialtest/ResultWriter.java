@@ -0,0 +1,38 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.IOException;
+
+/**
+ * Writes the results for each area as soon as they have been calculated, so the results
+ * don't all have to be kept in memory until the end of the run.
+ * @author Nick Malleson
+ */
+public interface ResultWriter {
+
+    /**
+     * Write the results for one area. Areas are written in order.
+     * @param area The area id (its position in the list of areas).
+     * @param a The area, with its results.
+     */
+    void write(int area, Area a) throws IOException;
+
+    /**
+     * Finish writing. Must be called once all areas have been written (or if writing fails).
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,39 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Counts from the Monte-Carlo runs that the confidence interval for each area can be
+ * worked out from, i.e. counts from every run (or enough of them) rather than just the
+ * runs done by one worker process.
+ * @author Nick Malleson
+ * @see CountMatrix
+ * @see StreamingBounds
+ */
+interface RunBounds extends RunCounts {
+
+    /**
+     * Find the lowest and highest count for every area once <code>numToRemove</code>
+     * outliers have been removed from each end.
+     * @param numToRemove The number of outliers to remove from each end.
+     * @param lower Array to store the lower bound for each area in.
+     * @param upper Array to store the upper bound for each area in.
+     * @param pool A pool that can be used to do the calculation in parallel.
+     */
+    void computeBounds(int numToRemove, int[] lower, int[] upper, ForkJoinPool pool);
+
+}
@@ -0,0 +1,55 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * The things that one run of the test (a call to <code>SpatialTestAlg.runAlgorithm()</code> or
+ * <code>reevaluate()</code>) learns about its input files and needs again when it writes the
+ * results: the projection of the data and the feature type of the areas. Each run has its
+ * own context, so tests can run at the same time in one JVM without changing each other's
+ * projections.
+ * @author Nick Malleson
+ */
+class RunContext {
+
+    /** The projection of the input data (null if it isn't known, e.g. for CSV files) */
+    private CoordinateReferenceSystem crs = null;
+    /** The feature type of the areas read from a shapefile (null for grids) */
+    private SimpleFeatureType areaFeatureType = null;
+
+    CoordinateReferenceSystem getCRS() {
+        return this.crs;
+    }
+
+    void setCRS(CoordinateReferenceSystem crs) {
+        this.crs = crs;
+    }
+
+    /**
+     * The feature type of the areas, used to build the output features (which have all the
+     * attributes of the original areas as well as the results).
+     */
+    SimpleFeatureType getAreaFeatureType() {
+        return this.areaFeatureType;
+    }
+
+    void setAreaFeatureType(SimpleFeatureType areaFeatureType) {
+        this.areaFeatureType = areaFeatureType;
+    }
+}
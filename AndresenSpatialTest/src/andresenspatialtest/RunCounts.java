@@ -0,0 +1,37 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+/**
+ * Collects the number of sampled test points in each area from every Monte-Carlo run.
+ * <p>
+ * <code>setRun()</code> is called by several threads at once (each with a different run).
+ * @author Nick Malleson
+ * @see RunBounds
+ */
+interface RunCounts {
+
+    /**
+     * Store the counts from one run.
+     * @param run The run number.
+     * @param areaCounts The number of sampled points in each area.
+     */
+    void setRun(int run, int[] areaCounts);
+
+    /** The total number of sampled points (in all areas) in the first run */
+    int getFirstRunTotal();
+
+}
@@ -0,0 +1,39 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws the X% samples of test points used in each Monte-Carlo run, returning the number
+ * of sampled points in each area.
+ * @author Nick Malleson
+ * @see PointSampler
+ * @see HypergeometricSampler
+ */
+interface Sampler {
+
+    /**
+     * Draw a sample and count the number of sampled points in each area.
+     * @param random The random numbers to draw the sample with.
+     * @param counts Array to write the counts to (one element per area).
+     */
+    void sample(SplittableRandom random, int[] counts);
+
+    /** The number of points in each sample */
+    int getSampleSize();
+
+}
@@ -0,0 +1,354 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Reads the coordinates of point shapefiles straight into (off-heap) buffers, without going
+ * through GeoTools features and JTS geometries. Each record is decoded in place from a
+ * memory-mapped view of the .shp file.
+ * <p>
+ * If there is a .shx index file next to the shapefile it gives the position of every record,
+ * so the records are split into chunks that are decoded in parallel (each chunk only maps its
+ * own part of the file, so files larger than 2GB can be read). Each chunk's points go
+ * straight into the output buffers from the position of the chunk's first record, so
+ * nothing needs to be joined up afterwards unless there were null records, in which case the
+ * chunks' points are moved down to close the gaps. Without a .shx file the records are read
+ * one after the other.
+ * <p>
+ * Only files with a single point per record (shape types Point, PointZ and PointM) can be
+ * read; the z and m values are ignored. Records with a null shape are skipped (and counted
+ * in <code>PointSet.getNumSkipped()</code>). For any other
+ * type of file <code>read()</code> returns null and the GeoTools reader should be used instead.
+ * (See the ESRI Shapefile Technical Description for the file format).
+ * @author Nick Malleson
+ */
+class ShapefilePointReader {
+
+    private static final int FILE_CODE = 9994;
+    private static final int HEADER_LENGTH = 100; // Bytes in the file header
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INDEX_RECORD_LENGTH = 8; // Bytes per record in the .shx file
+    private static final int NULL_SHAPE = 0;
+    private static final int POINT = 1;
+    private static final int POINT_Z = 11;
+    private static final int POINT_M = 21;
+    /** The number of records decoded by each parallel task */
+    private static final int CHUNK_RECORDS = 1 << 16;
+
+    /**
+     * Read the points in a shapefile.
+     * @param shapefile The .shp file.
+     * @param pool Used to decode the file in parallel.
+     * @return The points, or null if the file doesn't store points (or has no .shx file and
+     * is too large to map).
+     * @throws IOException If the file can't be read or isn't a valid shapefile.
+     */
+    static PointSet read(File shapefile, ForkJoinPool pool) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(shapefile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            if (length < HEADER_LENGTH) {
+                throw new IOException("Not a shapefile: " + shapefile.getName());
+            }
+            // The file header mixes big-endian (file code, length) and little-endian (everything else) values
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            header.order(ByteOrder.BIG_ENDIAN);
+            if (header.getInt(0) != FILE_CODE) {
+                throw new IOException("Not a shapefile: " + shapefile.getName());
+            }
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            int shapeType = header.getInt(32);
+            if (shapeType != POINT && shapeType != POINT_Z && shapeType != POINT_M) {
+                return null;
+            }
+            File shx = sibling(shapefile, ".shx");
+            if (shx.exists()) {
+                return readIndexed(shapefile, channel, shx, shapeType, pool);
+            }
+            if (length > Integer.MAX_VALUE) {
+                return null;
+            }
+            return readSequential(shapefile, channel, shapeType);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /** Read the records one after the other (used when there isn't an index file) */
+    private static PointSet readSequential(File shapefile, FileChannel channel, int shapeType) throws IOException {
+        long length = channel.size();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        // Every point record is at least 28 bytes, so this is the most points there can be
+        int maxPoints = (int) ((length - HEADER_LENGTH) / (RECORD_HEADER_LENGTH + 20));
+        DoubleBuffer xs = OffHeap.allocateDoubles(maxPoints);
+        DoubleBuffer ys = OffHeap.allocateDoubles(maxPoints);
+        int n = 0;
+        int numNull = 0;
+        int pos = HEADER_LENGTH;
+        while (pos + RECORD_HEADER_LENGTH <= length) {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            int contentLength = buffer.getInt(pos + 4) * 2; // (Lengths are stored as 16-bit words)
+            int content = pos + RECORD_HEADER_LENGTH;
+            if (contentLength < 4 || content + contentLength > length) {
+                throw new IOException("Bad record at byte " + pos + " in " + shapefile.getName());
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (decode(buffer, content, contentLength, shapeType, xs, ys, n)) {
+                n++;
+            }
+            else if (buffer.getInt(content) == NULL_SHAPE) {
+                numNull++;
+            }
+            else {
+                throw new IOException("Bad record at byte " + pos + " in " + shapefile.getName());
+            }
+            pos = content + contentLength;
+        }
+        return new PointSet(xs, ys, n, numNull);
+    }
+
+    /** Read the records in parallel, using the record positions in the index file */
+    private static PointSet readIndexed(File shapefile, FileChannel channel, File shx, int shapeType,
+            ForkJoinPool pool) throws IOException {
+        RandomAccessFile indexFile = new RandomAccessFile(shx, "r");
+        try {
+            long indexLength = indexFile.length();
+            if (indexLength > Integer.MAX_VALUE) {
+                throw new IOException("Index file too large: " + shx.getName());
+            }
+            MappedByteBuffer index = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexLength);
+            index.order(ByteOrder.BIG_ENDIAN); // (All the values in the index are big-endian)
+            int numRecords = (int) ((indexLength - HEADER_LENGTH) / INDEX_RECORD_LENGTH);
+            DoubleBuffer xs = OffHeap.allocateDoubles(numRecords);
+            DoubleBuffer ys = OffHeap.allocateDoubles(numRecords);
+            ChunkTask task = new ChunkTask(shapefile, channel, index, shapeType, xs, ys, 0, numRecords);
+            try {
+                pool.invoke(task);
+            }
+            catch (ChunkException e) {
+                throw e.getCause();
+            }
+            int n = task.compact(0);
+            return new PointSet(xs, ys, n, numRecords - n);
+        }
+        finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Decode the point in a record into position <code>n</code> of the output buffers.
+     * @param buffer The buffer holding the record, with little-endian order.
+     * @param content The position of the record content (after the record header).
+     * @return false if the record isn't a point of the expected type.
+     */
+    private static boolean decode(ByteBuffer buffer, int content, int contentLength, int shapeType,
+            DoubleBuffer xs, DoubleBuffer ys, int n) {
+        if (contentLength < 20 || buffer.getInt(content) != shapeType) {
+            return false;
+        }
+        xs.put(n, buffer.getDouble(content + 4));
+        ys.put(n, buffer.getDouble(content + 12));
+        return true;
+    }
+
+    /**
+     * Decodes a range of records (splitting it up if there are lots of them). The points are
+     * written from the position of the first record in the range, so if some of the records
+     * are null there is a gap after them until <code>compact()</code> is called.
+     */
+    private static class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private File shapefile;
+        private FileChannel channel;
+        private ByteBuffer index;
+        private int shapeType;
+        private DoubleBuffer xs;
+        private DoubleBuffer ys;
+        private int from; // The first record to decode (inclusive)
+        private int to; // The last record to decode (exclusive)
+        private int numPoints; // The number of points (i.e. records that weren't null) decoded
+        private ChunkTask left; // The tasks the range was split into (null if it wasn't)
+        private ChunkTask right;
+
+        ChunkTask(File shapefile, FileChannel channel, ByteBuffer index, int shapeType,
+                DoubleBuffer xs, DoubleBuffer ys, int from, int to) {
+            this.shapefile = shapefile;
+            this.channel = channel;
+            this.index = index;
+            this.shapeType = shapeType;
+            this.xs = xs;
+            this.ys = ys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > CHUNK_RECORDS) {
+                int mid = (this.from + this.to) >>> 1;
+                this.left = new ChunkTask(shapefile, channel, index, shapeType, xs, ys, from, mid);
+                this.right = new ChunkTask(shapefile, channel, index, shapeType, xs, ys, mid, to);
+                invokeAll(this.left, this.right);
+                return;
+            }
+            try {
+                this.decodeChunk();
+            }
+            catch (IOException e) {
+                throw new ChunkException(e);
+            }
+        }
+
+        private void decodeChunk() throws IOException {
+            if (this.from == this.to) {
+                return;
+            }
+            // Work out which part of the file holds the records (they are normally in order,
+            // but don't have to be)
+            long start = Long.MAX_VALUE, end = 0;
+            for (int i = this.from; i < this.to; i++) {
+                long offset = offset(i);
+                start = Math.min(start, offset);
+                end = Math.max(end, offset + RECORD_HEADER_LENGTH + contentLength(i));
+            }
+            if (start < HEADER_LENGTH || end > this.channel.size() || end - start > Integer.MAX_VALUE) {
+                throw new IOException("Index doesn't match the records in " + this.shapefile.getName());
+            }
+            MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int n = this.from;
+            for (int i = this.from; i < this.to; i++) {
+                int content = (int) (offset(i) - start) + RECORD_HEADER_LENGTH;
+                if (decode(buffer, content, contentLength(i), this.shapeType, this.xs, this.ys, n)) {
+                    n++;
+                }
+                else if (contentLength(i) < 4 || buffer.getInt(content) != NULL_SHAPE) {
+                    throw new IOException("Bad record " + i + " in " + this.shapefile.getName());
+                }
+            }
+            this.numPoints = n - this.from;
+        }
+
+        /**
+         * Move the points decoded by this task (and the tasks it was split into) down so that
+         * they start at position <code>n</code>. Must be called after the task has finished.
+         * @return The position after the last point.
+         */
+        int compact(int n) {
+            if (this.left != null) {
+                return this.right.compact(this.left.compact(n));
+            }
+            if (n < this.from) { // (There were null records before this range)
+                for (int i = 0; i < this.numPoints; i++) {
+                    this.xs.put(n + i, this.xs.get(this.from + i));
+                    this.ys.put(n + i, this.ys.get(this.from + i));
+                }
+            }
+            return n + this.numPoints;
+        }
+
+        /** The position of a record in the shapefile */
+        private long offset(int record) {
+            // (Stored as 16-bit words, and the int is unsigned so files can be up to 8GB)
+            return 2L * (this.index.getInt(HEADER_LENGTH + record * INDEX_RECORD_LENGTH) & 0xFFFFFFFFL);
+        }
+
+        /** The length of a record's content (excluding the record header) */
+        private int contentLength(int record) {
+            return 2 * this.index.getInt(HEADER_LENGTH + record * INDEX_RECORD_LENGTH + 4);
+        }
+    }
+
+    /** Used to get an IOException out of a <code>ChunkTask</code> */
+    private static class ChunkException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChunkException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /** The file with the same name as a shapefile and a different extension */
+    private static File sibling(File shapefile, String extension) {
+        String name = shapefile.getName();
+        return new File(shapefile.getParentFile(),
+                (name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name) + extension);
+    }
+
+    /**
+     * Read the projection of a shapefile from its .prj file.
+     * @param shapefile The .shp file.
+     * @return The projection, or null if there isn't a .prj file or it can't be understood.
+     */
+    static CoordinateReferenceSystem readCRS(File shapefile) {
+        File prj = sibling(shapefile, ".prj");
+        if (!prj.exists()) {
+            return null;
+        }
+        try {
+            InputStreamReader reader = new InputStreamReader(new FileInputStream(prj), Charset.forName("ISO-8859-1"));
+            StringBuilder wkt = new StringBuilder();
+            try {
+                char[] buf = new char[4096];
+                int read;
+                while ((read = reader.read(buf)) != -1) {
+                    wkt.append(buf, 0, read);
+                }
+            }
+            finally {
+                reader.close();
+            }
+            synchronized (SpatialTestAlg.GEOTOOLS_LOCK) {
+                return CRS.parseWKT(wkt.toString().trim());
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        catch (FactoryException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
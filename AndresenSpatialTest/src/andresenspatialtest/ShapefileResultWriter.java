@@ -0,0 +1,153 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import org.geotools.data.DataStore;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Writes the results for each area to a shapefile through a <code>FeatureWriter</code>,
+ * one feature at a time, so memory use doesn't depend on the number of areas.
+ * <p>
+ * Areas read from a shapefile keep all their original attributes (the first attributes of
+ * the output feature type must be the same as those of the input features). Grid cells
+ * don't have features or geometries, so their polygons are created by the grid as they
+ * are written. Only the occupied cells of a grid are areas, but the empty cells can be
+ * written too (with no points and an S value of 0) so the output covers the whole grid;
+ * they are filled in between the occupied cells, in grid id order, as the areas are written.
+ * @author Nick Malleson
+ */
+class ShapefileResultWriter implements ResultWriter {
+
+    private DataStore dataStore;
+    private FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+    private GridIndex grid; // The grid that areas are cells of (null if they were read from a shapefile)
+    private int absTotalTestPoints; // Used to convert the confidence interval to numbers of points
+    private boolean writeEmptyCells; // Whether to write the empty cells of the grid as well
+    private Area emptyCell; // The results for an empty cell
+    private long nextCellId = 0; // The grid id of the next cell to write (if writing empty cells)
+    private boolean failed = false; // Set if a feature couldn't be written
+
+    /**
+     * Create a new shapefile, ready for the areas to be written to it.
+     * @param file The shapefile to create (it must not already exist).
+     * @param type The feature type of the output features.
+     * @param grid The grid that the areas are cells of, or null if they were read from a shapefile.
+     * @param writeEmptyCells Whether to write the cells of the grid that have no points in them.
+     * @param absTotalTestPoints The total number of test points.
+     */
+    ShapefileResultWriter(File file, SimpleFeatureType type, GridIndex grid, boolean writeEmptyCells,
+            int absTotalTestPoints) throws IOException {
+        this.grid = grid;
+        this.writeEmptyCells = grid != null && writeEmptyCells;
+        this.absTotalTestPoints = absTotalTestPoints;
+        this.emptyCell = new Area(null);
+        this.emptyCell.percentageBasePoints = 0.0;
+        Map<String, Serializable> create = new HashMap<String, Serializable>();
+        create.put("url", file.toURI().toURL());
+        create.put("create spatial index", Boolean.TRUE);
+        synchronized (SpatialTestAlg.GEOTOOLS_LOCK) {
+            this.dataStore = new ShapefileDataStoreFactory().createNewDataStore(create);
+            this.dataStore.createSchema(type);
+            this.writer = this.dataStore.getFeatureWriterAppend(this.dataStore.getTypeNames()[0], Transaction.AUTO_COMMIT);
+        }
+    }
+
+    public void write(int area, Area a) throws IOException {
+        synchronized (SpatialTestAlg.GEOTOOLS_LOCK) {
+            try {
+                if (this.writeEmptyCells) {
+                    long cellId = this.grid.getCellId(area);
+                    this.writeEmptyCells(cellId);
+                    this.nextCellId = cellId + 1;
+                }
+                this.writeFeature(area, a);
+            }
+            catch (IOException e) {
+                this.failed = true;
+                throw e;
+            }
+        }
+    }
+
+    /** Write the empty cells from <code>nextCellId</code> up to (but not including) the given cell */
+    private void writeEmptyCells(long to) throws IOException {
+        for (; this.nextCellId < to; this.nextCellId++) {
+            SimpleFeature feature = this.writer.next();
+            feature.setDefaultGeometry(this.grid.createCellGeometry(this.nextCellId));
+            this.setResults(feature, this.emptyCell);
+            this.writer.write();
+        }
+    }
+
+    private void writeFeature(int area, Area a) throws IOException {
+        SimpleFeature feature = this.writer.next();
+        if (this.grid != null) {
+            feature.setDefaultGeometry(this.grid.createGeometry(area));
+        }
+        else {
+            // Copy the attributes (including the geometry) from the original feature
+            SimpleFeature existingFeature = a.feature;
+            for (int i = 0; i < existingFeature.getAttributeCount(); i++) {
+                feature.setAttribute(i, existingFeature.getAttribute(i));
+            }
+        }
+        this.setResults(feature, a);
+        this.writer.write();
+    }
+
+    private void setResults(SimpleFeature feature, Area a) {
+        feature.setAttribute(SpatialTestAlg.SIndexColumnName, (int) a.sVal);
+        feature.setAttribute("NumBsePts", a.numBasePoints);
+        feature.setAttribute("NumTstPts", a.absNumTestPoints);
+        feature.setAttribute("PctBsePts", a.percentageBasePoints);
+        feature.setAttribute("PctTstPts", a.absPercentageTestPoints);
+        // Also add the confidence intervals. Do the percentages, which are actually used in the analysis,
+        // and also calculate the associated counts of points (useful to report but not actually used)
+        feature.setAttribute("ConfLowP", a.confLowP);
+        feature.setAttribute("ConfUppP", a.confUppP);
+        feature.setAttribute("ConfLow", a.getConfLowCount(this.absTotalTestPoints));
+        feature.setAttribute("ConfUpp", a.getConfUppCount(this.absTotalTestPoints));
+    }
+
+    public void close() throws IOException {
+        synchronized (SpatialTestAlg.GEOTOOLS_LOCK) {
+            try {
+                try {
+                    if (this.writeEmptyCells && !this.failed) {
+                        // The cells after the last occupied one
+                        this.writeEmptyCells(this.grid.getNumCells());
+                    }
+                }
+                finally {
+                    this.writer.close();
+                }
+            }
+            finally {
+                this.dataStore.dispose();
+            }
+        }
+    }
+}
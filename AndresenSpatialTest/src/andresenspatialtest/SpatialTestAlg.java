@@ -20,43 +20,37 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFactorySpi;
 import org.geotools.data.DataStoreFinder;
-import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureSource;
-import org.geotools.data.FeatureStore;
-import org.geotools.data.Transaction;
-import org.geotools.data.shapefile.ShapefileDataStore;
-import org.geotools.data.shapefile.ShapefileDataStoreFactory;
 import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureCollections;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.operation.overlay.snap.GeometrySnapper;
 import java.io.FilenameFilter;
 import org.geotools.data.DataUtilities;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.SchemaException;
-import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
 
 /**
  * Class to perform Martin's spatial point-pattern comparison test.<br/>
@@ -74,9 +68,9 @@ public class SpatialTestAlg {
     private File testShapefile;		// The test dataset, compared to the base/reference
     private File areaShapefile;		// The areas used to test the two point datasets
     private File outputShapefile;	// The location to store the area output (S values)
-    // Lists to store the geometries of the input points and areas.
-    private List<Geometry> baseGeometries;
-    private List<Geometry> testGeometries;
+    // The input points and areas.
+    private PointSet basePoints;
+    private PointSet testPoints;
     private List<Area> areas; // Area objects represent each area and store number of base/test points
     // Useful for converting percentages of points to counts
     private int totalBasePoints ;       // These are required to calculate percentages
@@ -86,18 +80,36 @@ public class SpatialTestAlg {
     private int samplePercentage = 85;  // Percenatage of observations to use in a test sample.
     private int confidenceInterval = 95; // The confidece interval.
     private int gridSize = -1;
+    private boolean writeEmptyCells = true; // Whether the output grid shapefile includes the cells without points
     private double globalS;         // The global S index value calculated once the simulation has run
     private boolean useGrid = false; // Whether or not use a regular grid rather than a separate shapfile as the areas (default no)
+    private int threads = Runtime.getRuntime().availableProcessors(); // Number of threads to run the Monte-Carlo simulation with
+    private long seed = new SplittableRandom().nextLong(); // Seed for the random numbers used to sample test points
+    private boolean hypergeometricSampling = false; // Whether to draw sample counts directly rather than sampling points
+    private boolean streamingBounds = false; // Whether to only keep the counts needed for the confidence interval
+    private boolean columnarResults = false; // Whether to also write the results as binary columns
+    private boolean csvResults = false; // Whether to also write the results to a CSV file
+    private File countsFile = null; // Where to save the Monte-Carlo counts (if null they aren't saved)
+    private boolean reevaluate = false; // Whether to recalculate the results from the counts file instead of running
+    private File cacheDirectory = null; // Where to cache the areas that points are within (if null they aren't cached)
+    private boolean saveAreaIndex = true; // Whether to save the area index next to the area shapefile and re-use it
+    private DatasetCache datasetCache = null; // Keeps points and areas in memory for later tests (if not null)
+    private ForkJoinPool sharedPool = null; // A pool shared with other tests (if null each test creates its own)
+    private MemoryBudget memoryBudget = null; // Limits the memory used by tests running together (if not null)
+    private int workerProcesses = 0; // Number of processes to run the Monte-Carlo simulation in (0 to run it in this one)
     // Option of using area files as input and generating sudo points, not implemented yet
     private String basePointsField = null;
     private String testPointsField = null;
     private ConsoleWriter console = null; // A console to send output to.
     /** THe column name for the S-index (once calucalted) */
-    private static final String SIndexColumnName = "SIndex";
-    // When using auto-grids we need to know the crs of the input points so that the output matches.
-    // This is set by the readShapefil() method.
-    private static CoordinateReferenceSystem crs = null;
-    private static int gridIDs = 0; // Also need to set object IDs ourselves
+    static final String SIndexColumnName = "SIndex";
+    /** This version of GeoTools isn't safe to use from several threads at once (e.g. it sets up
+     * its registries of factories and functions when they are first used), so tests running at
+     * the same time hold this lock while they read or write shapefiles and projections. */
+    static final Object GEOTOOLS_LOCK = new Object();
+    // The projection and area feature type found by the current run, needed to write the output.
+    // Each run has its own so that tests can run at the same time (see RunContext).
+    private RunContext context = new RunContext();
 
     /**
      * Create a SpatialTestAlg object.
@@ -108,9 +120,18 @@ public class SpatialTestAlg {
 
     /* ****** MAIN PROGRAM ****** */
     /** Run the algorithm. This function is called once all the required variables
-    have been set and actually performs the test */
+    have been set and actually performs the test (or, if <code>setReevaluate()</code> has been
+    used, recalculates the results from the counts file) */
     public boolean runAlgorithm() {
 
+        if (this.reevaluate) {
+            if (this.countsFile == null) {
+                error("Need a counts file to recalculate the results from.");
+                return false;
+            }
+            return this.reevaluate(this.countsFile);
+        }
+
         // TODO: Check shapefiles are valid
 
         output("Will run algorithm with following parameters: \n"
@@ -121,92 +142,318 @@ public class SpatialTestAlg {
                 + "\t: sample percentage: " + this.samplePercentage + "\n"
                 + "\t: confidence interval: " + this.confidenceInterval + "\n"
                 + "\t: use auto-grid?: " + this.useGrid + "\n"
-                + "\t: grid size: " + this.gridSize + "\n");
+                + "\t: grid size: " + this.gridSize + "\n"
+                + "\t: write empty cells?: " + this.writeEmptyCells + "\n"
+                + "\t: hypergeometric sampling?: " + this.hypergeometricSampling + "\n"
+                + "\t: streaming bounds?: " + this.streamingBounds + "\n"
+                + "\t: columnar results?: " + this.columnarResults + "\n"
+                + "\t: CSV results?: " + this.csvResults + "\n"
+                + "\t: counts file: " + (this.countsFile == null ? "null" : this.countsFile.getName()) + "\n"
+                + "\t: cache directory: " + (this.cacheDirectory == null ? "null" : this.cacheDirectory.getPath()) + "\n"
+                + "\t: save area index?: " + this.saveAreaIndex + "\n"
+                + "\t: threads: " + this.threads + "\n"
+                + "\t: worker processes: " + this.workerProcesses + "\n"
+                + "\t: random seed: "  + this.seed + "\n");
+        this.context = new RunContext();
+
+        // Read the shapefiles (or CSV files) to get the points from them. Point shapefiles are
+        // decoded in parallel.
+        // (Use the shared pool if there is one, e.g. when a JobScheduler is running lots of tests)
+        final ForkJoinPool pool = this.sharedPool != null ? this.sharedPool : new ForkJoinPool(this.threads);
+        if (this.sharedPool != null) {
+            // Read the files one after the other on this thread. Reading can mean waiting for
+            // another test to read the same file (see DatasetCache), which mustn't be done by
+            // a thread in the shared pool: the other test might need that thread to finish.
+            this.testPoints = this.loadPoints(this.testShapefile, pool);
+            this.basePoints = this.loadPoints(this.baseShapefile, pool);
+        }
+        else {
+            // The base and test files are read at the same time
+            ForkJoinTask<PointSet> readBase = pool.submit(new Callable<PointSet>() {
 
-        // Read the shapefiles to get the geometric features from them, storing them in
-        // the global lists
-        this.baseGeometries = readShapefile(baseShapefile, null, false);
-        this.testGeometries = readShapefile(testShapefile, null, false);
+                public PointSet call() throws Exception {
+                    return loadPoints(baseShapefile, pool);
+                }
+            });
+            this.testPoints = this.loadPoints(this.testShapefile, pool);
+            this.basePoints = readBase.join();
+        }
+        if (this.basePoints == null || this.testPoints == null) {
+            error("Could not read the base or test points, see the error above.");
+            this.releasePool(pool);
+            return false;
+        }
+        this.reportSkipped(this.basePoints, this.baseShapefile);
+        this.reportSkipped(this.testPoints, this.testShapefile);
+        // Remember the CRS, useful for building output features (if areas are read from a
+        // shapefile then this is replaced by their CRS)
+        this.context.setCRS(readCRS(this.testShapefile));
 
         // See whether to read a shapefile with areas to aggregate to or generate a regular grid.
+        GridIndex grid = null; // The grid, if one is used instead of areas read from a file
+        PackedHilbertRTree areaTree = null; // An index of the areas, if they were already in the dataset cache
         if (!this.useGrid) {
             // Read areas from a shapefile
-            readShapefile(areaShapefile, this.areas, true);
-            output("Have read in " + this.baseGeometries.size() + " base points, "
-                    + this.testGeometries.size() + " test points, " + this.areas.size() + " areas.");
+            areaTree = this.loadAreas(pool);
+            this.basePoints = this.toAreaProjection(this.basePoints, this.baseShapefile);
+            this.testPoints = this.toAreaProjection(this.testPoints, this.testShapefile);
+            if (this.basePoints == null || this.testPoints == null) {
+                this.releasePool(pool);
+                return false;
+            }
+            output("Have read in " + this.basePoints.size() + " base points, "
+                    + this.testPoints.size() + " test points, " + this.areas.size() + " areas.");
         }
         else {
-            // Need a temporary list of all points
-            List<Geometry> temp = new ArrayList<Geometry>();
-            temp.addAll(this.baseGeometries);
-            temp.addAll(this.testGeometries);
-            this.areas = SpatialTestAlg.createRegularGrid(this.gridSize, temp);
-            // Need to set the Area.featureType so the areas can be converted to proper polygons
-            // later (this is done automatically by readShapefile)
-            SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-            builder.setName("OutGrids"); // ?
-            // The crs should have been set in readShapefile(), but if the input data don't
-            // have an associated projection it will be null; so use WGS84
-            builder.setCRS(SpatialTestAlg.crs == null ? DefaultGeographicCRS.WGS84 : SpatialTestAlg.crs);
-
-//             add attributes in order
-//            builder.add("Location", Point.class);
-//            builder.length(15).add("Name", String.class); // <- 15 chars width for name field
-
-            // build the type
-            Area.featureType = builder.buildFeatureType();
-
-            output("Have read in " + this.baseGeometries.size() + " base points, "
-                    + this.testGeometries.size() + " test points, and created a regular grid with"
-                    + this.areas.size() + " cells.");
+            // Calculate the bounding box of all points
+            Cell box = Cell.calcBoundingBoxCoords(this.basePoints, this.testPoints);
+            System.out.println("FOUND BOUNDING BOX:" + box.toString());
+            // Points can be put in grid cells without testing them against the cell polygons.
+            // Only cells with points in them become areas, the rest are empty.
+            grid = new GridIndex(box, this.gridSize, this.basePoints, this.testPoints);
+            this.areas = SpatialTestAlg.createRegularGrid(grid);
+
+            output("Have read in " + this.basePoints.size() + " base points, "
+                    + this.testPoints.size() + " test points, and created a regular grid with "
+                    + grid.getNumCells() + " cells (" + this.areas.size() + " have points in them).");
         }
 
 
         // Need to know how many base and test points there are in total for calculating
         // percentages later.
-        totalBasePoints = this.baseGeometries.size(); // These are required to calculate percentages
-        absTotalTestPoints = this.testGeometries.size(); // (called absTotal to differentiate with totals calculated by monte carlo)
+        totalBasePoints = this.basePoints.size(); // These are required to calculate percentages
+        absTotalTestPoints = this.testPoints.size(); // (called absTotal to differentiate with totals calculated by monte carlo)
 
         /* Count the number of base and test features in each area. These are stored in the
         Area objects */
         output("Counting number of features in each area");
-        for (Area a : this.areas) { // Iterate over every Area object
-            a.numBasePoints = findPointsWithin(a, this.baseGeometries);
-            // Calculate number of test points so it can be output at end, not used in calculation
-            // (Monte-Carlo used so number of test points varies each run).
-            a.absNumTestPoints = findPointsWithin(a, this.testGeometries);
+        int[] baseCounts = null;
+        IntBuffer testAreaIds = null;
+        int numOverlappingBase = 0, numOverlappingTest = 0; // Number of points in more than one area
+        // The points might have been tested against the same areas in an earlier run (grid
+        // cells are found arithmetically so aren't worth caching)
+        AssignmentCache cache = this.useGrid ? null : this.openCache();
+        String baseKey = null, testKey = null;
+        if (cache != null) {
+            try {
+                baseKey = cache.key(AssignmentCache.AREA_COUNTS, this.baseShapefile, this.areaShapefile);
+                testKey = cache.key(AssignmentCache.AREA_IDS, this.testShapefile, this.areaShapefile);
+                AssignmentCache.Entry baseEntry = cache.get(baseKey, this.areas.size());
+                AssignmentCache.Entry testEntry = cache.get(testKey, this.testPoints.size());
+                if (baseEntry != null && testEntry != null) {
+                    output("Using the areas that the points are within from the cache");
+                    baseCounts = new int[this.areas.size()];
+                    baseEntry.getValues().get(baseCounts);
+                    testAreaIds = testEntry.getValues();
+                    numOverlappingBase = baseEntry.getNumOverlappingPoints();
+                    numOverlappingTest = testEntry.getNumOverlappingPoints();
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace(); // Not fatal, the points can still be tested against the areas
+                cache = null;
+            }
+        }
+        if (testAreaIds == null) {
+            AreaLocator areaIndex; // Used to find which area each point is within
+            if (grid != null) {
+                areaIndex = grid;
+            }
+            else if (areaTree != null) { // (Cached areas have already been prepared)
+                areaIndex = new AreaIndex(this.areas, areaTree);
+            }
+            else {
+                // Prepare the area polygons now (in parallel) so that counting points is quick
+                Area.prepareAll(this.areas, pool);
+                // Index the areas once so that points are only tested against nearby areas
+                areaIndex = new AreaIndex(this.areas, this.loadAreaTree(this.areas));
+            }
+            baseCounts = areaIndex.countPointsWithin(this.basePoints);
+            numOverlappingBase = areaIndex.getNumOverlappingPoints();
+            // Work out which area each test point is in once. The Monte-Carlo runs can then sample
+            // from these ids rather than having to test the points against the areas again.
+            testAreaIds = areaIndex.assignPoints(this.testPoints);
+            numOverlappingTest = areaIndex.getNumOverlappingPoints();
+            if (cache != null) {
+                try {
+                    cache.put(baseKey, IntBuffer.wrap(baseCounts), numOverlappingBase);
+                    cache.put(testKey, testAreaIds, numOverlappingTest);
+                }
+                catch (IOException e) {
+                    e.printStackTrace(); // Not fatal, they will just be worked out again next time
+                }
+            }
+        }
+        if (numOverlappingBase > 0 || numOverlappingTest > 0) {
+            // Counting these points in every area they are within would give percentages that
+            // don't add up to 100, so the S index wouldn't mean the same thing
+            error("WARNING: the areas overlap. " + numOverlappingBase + " base points and "
+                    + numOverlappingTest + " test points are within more than one area. Each of "
+                    + "them is only counted in the first of its areas (in the order of the area "
+                    + "file), so the results for the overlapping areas depend on that order.");
+        }
+        // Calculate number of test points so it can be output at end, not used in calculation
+        // (Monte-Carlo used so number of test points varies each run).
+        int[] testCounts = new int[this.areas.size()];
+        AreaIndex.countAreaIds(testAreaIds, 0, this.testPoints.size(), testCounts);
+        if (sum(baseCounts) == 0 || sum(testCounts) == 0) {
+            // Every area would have an S index of 1, which looks like a (perfect) result
+            error("None of the " + (sum(baseCounts) == 0 ? "base" : "test") + " points are within any "
+                    + "of the areas. Check that the points and the areas are in the same place and use "
+                    + "the same projection.");
+            this.releasePool(pool);
+            return false;
+        }
+        for (int i = 0; i < this.areas.size(); i++) { // Iterate over every Area object
+            Area a = this.areas.get(i);
+            a.numBasePoints = baseCounts[i];
+            a.absNumTestPoints = testCounts[i];
         }
 
         /* Run the Monte-Carlo simulation */
         output("Running Monte-Carlo simulation (sampling points and counting number in each area)");
-        for (int i = 0; i < this.monteCarlo; i++) { // Run the test a number of times
-			/* Sample X% points from the test data */
-            List<Geometry> testSample = sample(testGeometries, this.samplePercentage);
-            /* Find how many of the points are within each area */
-            for (Area area : this.areas) {
-                int pointsWithin = findPointsWithin(area, testSample);
-                area.numTestPoints.add(pointsWithin);
-            }
-            output("\tCompleted run " + (i + 1));
-        } // for monteCarlo
-
-        // (For next steps need to work out how many test points were sampled in total)
-        int totalSampledTestPoints = 0;
-        for (Area a : this.areas) {
-            totalSampledTestPoints += a.numTestPoints.get(0); // All runs will have same number of test points
+        // Reserve the memory needed for the simulation, if tests are sharing a memory budget
+        long workingMemory = this.estimateWorkingMemory(this.workerProcesses > 0 ? this.workerProcesses : pool.getParallelism());
+        if (!this.reserveMemory(workingMemory)) {
+            this.releasePool(pool);
+            return false;
         }
+        try {
+            // The number of outliers that will be removed from the top and bottom of each area's counts
+            int numToRemove = this.getNumToRemove();
+            // The number of sampled points in each area, either for every run or just enough to find the bounds
+            RunBounds runCounts = this.streamingBounds
+                    ? new StreamingBounds(this.areas.size(), numToRemove)
+                    : new CountMatrix(this.areas.size(), this.monteCarlo);
+            if (this.workerProcesses > 0) {
+                // Share the runs out between separate processes, each with its own heap
+                output("Running the simulation in " + this.workerProcesses + " worker processes");
+                WorkerPool workers = new WorkerPool(this.workerProcesses,
+                        Math.max(1, this.threads / this.workerProcesses), this.console);
+                try {
+                    workers.run(testAreaIds, this.testPoints.size(), testCounts, this.samplePercentage,
+                            this.hypergeometricSampling, this.seed, this.monteCarlo, runCounts, numToRemove);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    error("Could not run the simulation in worker processes: " + e.getMessage());
+                    return false;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error("Interrupted while waiting for the worker processes");
+                    return false;
+                }
+            }
+            else {
+                pool.invoke(new MonteCarloTask(testAreaIds, this.testPoints.size(), testCounts, this.samplePercentage,
+                        this.hypergeometricSampling, MonteCarloTask.createRunRandoms(this.seed, 0, this.monteCarlo),
+                        runCounts, 0, this.monteCarlo, this.console));
+            }
 
-        /* Calculate, for each area, the percentage of points in it at every Monte-Carlo iteration */
-        output("Calculating percentage test points in each area for each run");
-        for (Area a : this.areas) {
-            for (Integer num : a.numTestPoints) {
-                if (totalSampledTestPoints > 0) { // Check for divide by 0 error
-                    a.percentageTestPoints.add(100.0 * ((double) num / (double) totalSampledTestPoints));
+            // (For next steps need to work out how many test points were sampled in total)
+            int totalSampledTestPoints = runCounts.getFirstRunTotal(); // All runs will have same number of test points
+
+            // Save the counts so the results can be recalculated later (see reevaluate())
+            if (this.countsFile != null) {
+                if (runCounts instanceof CountMatrix) {
+                    output("Saving Monte-Carlo counts to: " + this.countsFile.getName());
+                    try {
+                        CountsFile.write(this.countsFile, (CountMatrix) runCounts, this.areas,
+                                totalSampledTestPoints, this.totalBasePoints, this.absTotalTestPoints, grid,
+                                this.areaShapefile);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace(); // Not fatal, the results can still be calculated
+                    }
                 }
                 else {
-                    a.percentageTestPoints.add(0.0);
+                    error("Warning: the Monte-Carlo counts can't be saved when using streaming bounds.");
                 }
             }
+
+            this.calculateSIndex(runCounts, totalSampledTestPoints, grid, pool);
+        }
+        finally {
+            if (this.memoryBudget != null) {
+                this.memoryBudget.release(workingMemory);
+            }
+            this.releasePool(pool);
+        }
+        output("ALGORITHM HAS FINISHED");
+
+        output("Have read in " + this.basePoints.size() + " base points, "
+                + this.testPoints.size() + " test points (" + (this.testPoints.size() - (int) Math.round(this.testPoints.size() * ((100 - this.samplePercentage) / 100.0))) + " test point used) and " + this.areas.size() + " areas.");
+
+        return true;
+    } // runAlgorithm
+
+    /**
+     * Get an R-tree over the areas. The tree is saved next to the area shapefile (with the
+     * extension <code>.hrt</code>) the first time the shapefile is used, and re-used
+     * afterwards until the shapefile changes.
+     * @param areas The areas read from the area shapefile.
+     */
+    private PackedHilbertRTree loadAreaTree(List<Area> areas) {
+        String name = this.areaShapefile.getName();
+        File treeFile = new File(this.areaShapefile.getParentFile(),
+                (name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name) + ".hrt");
+        if (this.saveAreaIndex) {
+            try {
+                PackedHilbertRTree tree = PackedHilbertRTree.open(treeFile, this.areaShapefile, areas.size());
+                if (tree != null) {
+                    output("Using the area index in " + treeFile.getName());
+                    return tree;
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace(); // Not fatal, the tree is just built again
+            }
+        }
+        PackedHilbertRTree tree = PackedHilbertRTree.build(areas);
+        if (this.saveAreaIndex) {
+            try {
+                tree.write(treeFile, this.areaShapefile);
+            }
+            catch (IOException e) {
+                error("Warning: could not save the area index to " + treeFile.getName() + ": " + e.getMessage());
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Open the cache of the areas that points are within.
+     * @return The cache, or null if there is no cache directory or it can't be used.
+     */
+    private AssignmentCache openCache() {
+        if (this.cacheDirectory == null) {
+            return null;
+        }
+        try {
+            return new AssignmentCache(this.cacheDirectory);
+        }
+        catch (IOException e) {
+            error("Warning: could not use the cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Work out the confidence interval and S-index for every area, and the global S value,
+     * from the counts of sampled test points in each Monte-Carlo run. The areas must already
+     * have their base and test point counts. The results for each area are written to the
+     * output files as soon as they have been calculated.
+     * @param runCounts The counts from the Monte-Carlo runs.
+     * @param totalSampledTestPoints The number of test points in each sample.
+     * @param grid The grid that the areas are cells of, or null if areas were read from a shapefile.
+     * @param pool Used to find the confidence intervals in parallel.
+     */
+    private void calculateSIndex(RunBounds runCounts, int totalSampledTestPoints, GridIndex grid, ForkJoinPool pool) {
+        /* Calculate, for each area, the percentage of base and test points in it. (The percentage of
+        test points at every Monte-Carlo iteration is worked out from the counts when it is needed) */
+        output("Calculating percentage base and test points in each area");
+        for (Area a : this.areas) {
             // (Also calculate percentage of base points, needed later, checking for zeros)
             a.percentageBasePoints = 100 * ((double) a.numBasePoints / totalBasePoints);
             // (Also calculate absolute percentage of test points to output later, not used in calculation)
@@ -214,376 +461,495 @@ public class SpatialTestAlg {
         }
 
         /* For each area, rank the percentages in ascending order and remove outliers. */
-        double removePercentage = (100.0 - this.confidenceInterval) / 100.0;
-        int numToRemove = (int) Math.round((this.monteCarlo * removePercentage) / 2.0); // The number of samples to remove
+        int numToRemove = this.getNumToRemove();
         output("Ranking percentages in ascending order and removing " + numToRemove + " outliers from top and bottom");
-        for (Area a : this.areas) {
-            // Sort the list of percentages
-            Double[] percentages = a.percentageTestPoints.toArray(new Double[a.percentageTestPoints.size()]);
-            Arrays.sort(percentages);
-            // (List converted to a Vector to allow remove() operation, otherwise not supported)
-            a.pTestPoitsNoOutliers = new Vector<Double>(Arrays.asList(percentages));
-
-            // Remove upper and lower outliers
-            for (int i = 0; i < numToRemove; i++) { // Remove from start of list
-                a.pTestPoitsNoOutliers.remove(0); // (all objects shifted along when one removed)
-            }
-            for (int i = 0; i < numToRemove; i++) {// And from the end
-                a.pTestPoitsNoOutliers.remove(a.pTestPoitsNoOutliers.size() - 1);
-            }
+        // (Counts have the same order as the percentages because the total is the same for every
+        // run, so only need to find the two counts at the ends once the outliers are removed)
+        int[] lowerCounts = new int[this.areas.size()];
+        int[] upperCounts = new int[this.areas.size()];
+        runCounts.computeBounds(numToRemove, lowerCounts, upperCounts, pool);
+        for (int i = 0; i < this.areas.size(); i++) {
+            Area a = this.areas.get(i);
+            a.confLowP = percentage(lowerCounts[i], totalSampledTestPoints);
+            a.confUppP = percentage(upperCounts[i], totalSampledTestPoints);
         }
 
-        /* Calculate the S-index for each area */
-        output("Calculating S-index for each area");
+        /* Calculate the S-index for each area, mapping the S values by writing each area to the
+        output shapefile as soon as it has been calculated */
+        output("Calculating S-index for each area" + (this.outputShapefile == null ? ""
+                : " and outputting shapefile of areas: " + this.outputShapefile.getName()));
+        List<ResultWriter> writers = this.createResultWriters(grid);
         int globalSTotal = 0; // Global S value is sum of all local s values / num areas
-        for (Area a : this.areas) {
+        for (int i = 0; i < this.areas.size(); i++) {
+            Area a = this.areas.get(i);
             // Calculate local S value for this area. 0 if base points within range of test percentages,
             // (no difference) 1 if base is greater, -1 if base is less.
             int localS = 0;
-            int samples = a.pTestPoitsNoOutliers.size(); // Number of samples
-            if (a.percentageBasePoints >= a.pTestPoitsNoOutliers.get(0)
-                    && a.percentageBasePoints <= a.pTestPoitsNoOutliers.get(samples - 1)) {
+            if (a.percentageBasePoints >= a.confLowP
+                    && a.percentageBasePoints <= a.confUppP) {
                 localS = 0; // No difference, base percentage is within range of test percentages
             }
-            else if (a.percentageBasePoints < a.pTestPoitsNoOutliers.get(0)) {
+            else if (a.percentageBasePoints < a.confLowP) {
                 localS = -1; // Significant difference, base points below range of test points
             }
-            else if (a.percentageBasePoints > a.pTestPoitsNoOutliers.get(samples - 1)) {
+            else if (a.percentageBasePoints > a.confUppP) {
                 localS = 1; // Significant difference, base points above range of test points
             }
             else {
                 System.err.println("Error calculating local S value.\n\t"
                         + "Percentage base points: " + a.percentageBasePoints + "\n\t"
-                        + "Percentage test points: " + a.pTestPoitsNoOutliers.get(0) + " - "
-                        + a.pTestPoitsNoOutliers.get(samples - 1));
+                        + "Percentage test points: " + a.confLowP + " - " + a.confUppP);
             }
             a.sVal = localS; // Store this area's local S value
             globalSTotal += Math.abs(localS); //Increment the global S total
+            for (int w = 0; w < writers.size(); w++) {
+                try {
+                    writers.get(w).write(i, a);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    // Carry on calculating S values (and writing any other outputs)
+                    closeResultWriter(writers.remove(w--));
+                }
+            }
         } // for areas
+        for (ResultWriter writer : writers) {
+            closeResultWriter(writer);
+        }
 
         /* Calculate global S value */
-        this.globalS = 1 - ((double) globalSTotal / (double) areas.size());
+        // (Empty grid cells aren't stored, but they are areas with an S value of 0 so still count)
+        double numAreas = this.useGrid ? grid.getNumCells() : this.areas.size();
+        this.globalS = 1 - ((double) globalSTotal / numAreas);
         output("Found global S value: " + this.globalS);
+    }
 
-        /* Map the S values, outputting to a shapefile */
-        output("Outputting shapefile of areas: " + this.outputShapefile.getName());
-        if (useGrid) {
-            outputNewGrids(this.areas, this.outputShapefile);
+    /**
+     * Recalculate the results from the Monte-Carlo counts saved by an earlier run (see
+     * <code>setCountsFile()</code>) without running the simulation again, e.g. to see the
+     * results with a different confidence interval. The current confidence interval is used
+     * and the results are written to the output file(s) in the same way as
+     * <code>runAlgorithm()</code>. If the areas were read from a shapefile then
+     * <code>areaShapefile</code> must be the same file, with the same contents (it is only
+     * read, and checked, if there is an output shapefile to write).
+     * @param countsFile The file of counts.
+     * @return true if the results were calculated.
+     */
+    public boolean reevaluate(File countsFile) {
+        output("Will recalculate results from saved counts with following parameters: \n"
+                + "\t: counts file: " + countsFile.getName() + "\n"
+                + "\t: area data: " + (this.areaShapefile == null ? "null" : this.areaShapefile.getName()) + "\n"
+                + "\t: confidence interval: " + this.confidenceInterval + "\n"
+                + "\t: threads: " + this.threads + "\n");
+        this.context = new RunContext();
+        CountsFile counts;
+        try {
+            counts = CountsFile.read(countsFile);
         }
-        else {
-            outputNewAreas(this.areas, this.outputShapefile);
+        catch (IOException e) {
+            e.printStackTrace();
+            error("Could not read the counts file " + countsFile.getName() + ": " + e.getMessage());
+            return false;
         }
-        output("ALGORITHM HAS FINISHED");
+        this.monteCarlo = counts.getMatrix().getNumRuns();
+        this.totalBasePoints = counts.getTotalBasePoints();
+        this.absTotalTestPoints = counts.getAbsTotalTestPoints();
+        GridIndex grid = counts.getGrid();
+        this.useGrid = grid != null;
 
-        output("Have read in " + this.baseGeometries.size() + " base points, "
-                + this.testGeometries.size() + " test points (" + (this.testGeometries.size() - (int) Math.round(this.testGeometries.size() * ((100 - this.samplePercentage) / 100.0))) + " test point used) and " + this.areas.size() + " areas.");
+        this.areas = new ArrayList<Area>();
+        if (grid == null && this.outputShapefile != null) {
+            // Need the area features to write the output shapefile
+            if (this.areaShapefile == null) {
+                error("The counts are for areas read from a shapefile, the area shapefile must be given "
+                        + "to write the output shapefile.");
+                return false;
+            }
+            try {
+                if (!counts.isForAreas(this.areaShapefile)) {
+                    error("The counts file " + countsFile.getName() + " wasn't saved for the areas in "
+                            + this.areaShapefile.getName() + " (or the file has changed since).");
+                    return false;
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                error("Could not read the area file " + this.areaShapefile.getName() + ": " + e.getMessage());
+                return false;
+            }
+            readShapefile(this.areaShapefile, this.areas, this.context);
+            if (this.areas.size() != counts.getNumAreas()) {
+                error("The area file has " + this.areas.size() + " areas but the counts file has "
+                        + counts.getNumAreas() + ", they must be from different files.");
+                return false;
+            }
+        }
+        else {
+            for (int i = 0; i < counts.getNumAreas(); i++) {
+                this.areas.add(new Area(null));
+            }
+            if (grid != null) {
+                // The counts file doesn't store the projection, so use the test points' (if given)
+                this.context.setCRS(this.testShapefile == null ? null : readCRS(this.testShapefile));
+            }
+        }
+        for (int i = 0; i < this.areas.size(); i++) {
+            this.areas.get(i).numBasePoints = counts.getNumBasePoints(i);
+            this.areas.get(i).absNumTestPoints = counts.getAbsNumTestPoints(i);
+        }
 
+        ForkJoinPool pool = this.sharedPool != null ? this.sharedPool : new ForkJoinPool(this.threads);
+        try {
+            this.calculateSIndex(counts.getMatrix(), counts.getTotalSampledTestPoints(), grid, pool);
+        }
+        finally {
+            this.releasePool(pool);
+        }
+        output("ALGORITHM HAS FINISHED");
         return true;
-    } // runAlgorithm
+    }
+
+    /** Shut down a pool that was created for this test (a shared pool is left running) */
+    private void releasePool(ForkJoinPool pool) {
+        if (pool != this.sharedPool) {
+            pool.shutdown();
+        }
+    }
 
     /**
-     * Read a shapefile and return a list of geometries of all objects. Code from
-     * <url>http://docs.codehaus.org/display/GEOTDOC/04+How+to+Read+a+Shapefile</url>
-     * @param file The shapefile to read
-     * @param areas Optional list of areas. This can be used to create objects of type
-     * <code>Area</code>; they will be stored in the given array (if the argument is non-null).
-     * Could/should be a in a separate method really, but that would mean lots of code repetition.
-     * @param wruteFeatureSource If true, will use a feature to set the feature source
-     * of <code>Area</code>.
-     * @return A list of geometries read in from the shapefile.
+     * Estimate the memory needed to run the Monte-Carlo simulation: the counts (or the
+     * tails of the counts with streaming bounds) and the copy of the test points' area ids
+     * that each thread samples from (worker processes have their own copies). The points and
+     * areas themselves aren't included.
+     * @param numThreads The number of threads (or worker processes) that will run the simulation.
+     * @return The estimate in bytes.
      */
-    private static List<Geometry> readShapefile(File file, List<Area> theAreas,
-            boolean writeFeatureSource) {
-        List<Geometry> geometryList = new ArrayList<Geometry>();
-        // Connection to the shapefile
-        Map<String, Serializable> connectParameters = new HashMap<String, Serializable>();
+    long estimateWorkingMemory(int numThreads) {
+        long numAreas = this.areas.size();
+        long counts = this.streamingBounds
+                ? 2L * 4 * numAreas * (this.getNumToRemove() + 1) * numThreads
+                : 4L * numAreas * this.monteCarlo;
+        long samplers = this.hypergeometricSampling || this.workerProcesses > 0 ? 0 : 8L * this.testPoints.size() * numThreads;
+        return counts + samplers;
+    }
 
+    /**
+     * Reserve memory from the memory budget (if there is one), waiting if other tests are
+     * using it.
+     * @return true if the memory was reserved, false if it never could be.
+     */
+    private boolean reserveMemory(long bytes) {
+        if (this.memoryBudget == null) {
+            return true;
+        }
+        if (this.memoryBudget.getUsed() + bytes > this.memoryBudget.getTotal()) {
+            output("Waiting for " + (bytes >> 20) + "MB of memory to be freed by other tests");
+        }
         try {
-            connectParameters.put("url", file.toURI().toURL());
-            connectParameters.put("create spatial index", true);
-            DataStore dataStore = DataStoreFinder.getDataStore(connectParameters);
-
-            // we are now connected
-            String[] typeNames = dataStore.getTypeNames();
-            String typeName = typeNames[0];
+            this.memoryBudget.acquire(bytes);
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            error("This test needs about " + (bytes >> 20) + "MB of memory, which is more than the "
+                    + "memory budget (" + (this.memoryBudget.getTotal() >> 20) + "MB). Try fewer "
+                    + "Monte-Carlo runs or streaming bounds.");
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error("Interrupted while waiting for memory");
+            return false;
+        }
+    }
 
-            FeatureSource<SimpleFeatureType, SimpleFeature> featureSource = dataStore.getFeatureSource(typeName);
-            // Remember the CRS, useful for building output features
-            SpatialTestAlg.crs = featureSource.getInfo().getCRS();
-            if (writeFeatureSource) {
-//                Area.featureSource = featureSource;
-                Area.featureType = featureSource.getFeatures().iterator().next().getFeatureType();
-            }
-            FeatureCollection<SimpleFeatureType, SimpleFeature> collection = featureSource.getFeatures();
-            FeatureIterator<SimpleFeature> iterator = collection.features();
+    /**
+     * The number of outliers to remove from the top and bottom of each area's counts to get
+     * the confidence interval.
+     */
+    private int getNumToRemove() {
+        double removePercentage = (100.0 - this.confidenceInterval) / 100.0;
+        return (int) Math.round((this.monteCarlo * removePercentage) / 2.0); // The number of samples to remove
+    }
 
-            try {
-                while (iterator.hasNext()) {
-                    SimpleFeature feature = iterator.next();
-                    Geometry geometry = (Geometry) feature.getDefaultGeometry();
-                    geometryList.add(geometry);
-                    if (theAreas != null) {
-                        Area a = new Area(geometry);
-                        a.feature = feature;
-                        theAreas.add(a);
-                    }
-                }
+    /**
+     * Read the points in a shapefile or CSV file. CSV files (with a .csv extension) are read
+     * by <code>CsvPointReader</code>. Point shapefiles are read directly into arrays of
+     * coordinates (see <code>ShapefilePointReader</code>), other types of shapefile (or
+     * any that can't be read that way) are read with <code>readShapefile()</code>.
+     * @param file The file to read
+     * @param pool Used to decode point shapefiles in parallel
+     * @return The points, or null if a CSV file couldn't be read
+     */
+    private static PointSet readPoints(File file, ForkJoinPool pool) {
+        try {
+            if (file.getName().toLowerCase().endsWith(".csv")) {
+                return CsvPointReader.read(file);
             }
-            finally {
-                if (iterator != null) {
-                    iterator.close();
-                }
+            PointSet points = ShapefilePointReader.read(file, pool);
+            if (points != null) {
+                return points;
             }
         }
-        catch (MalformedURLException e) {
-            e.printStackTrace();
-        }
         catch (IOException e) {
             e.printStackTrace();
+            if (file.getName().toLowerCase().endsWith(".csv")) {
+                return null;
+            }
+            // Not fatal for shapefiles, try again with GeoTools
         }
-        return geometryList;
-    } // read pointsShapefile
+        return PointSet.fromGeometries(readShapefile(file, null, null));
+    }
+
+    private static int sum(int[] values) {
+        int total = 0;
+        for (int v : values) {
+            total += v;
+        }
+        return total;
+    }
 
     /**
-     * Create a regular grid of <code>Area</code> objects. Make the grid large enough
-     * to cover the full extent of all the given <code>Geometry</code>s.
-     * @param size The XXXX
-     * @param points The points which will be used to calculate the extent of the grid
-     * @return
+     * Convert points that were read as longitudes and latitudes (e.g. from a police.uk CSV
+     * file) to the projection of the areas, if the areas are projected (e.g. British National
+     * Grid), so that they can be compared with the areas.
+     * @param points The points.
+     * @param file The file the points were read from.
+     * @return The converted points, the same points if they don't need to be converted, or
+     * null if they couldn't be converted.
      */
-    private static List<Area> createRegularGrid(int size, List<Geometry> points) {
-
-        List<Area> areas = new ArrayList<Area>();
-        // Calculate the bounding box
-        Cell box = Cell.calcBoundingBoxCoords(points);
-        System.out.println("FOUND BOUNDING BOX:" + box.toString());
+    private PointSet toAreaProjection(PointSet points, File file) {
+        CoordinateReferenceSystem areaCRS = this.context.getCRS();
+        if (!points.isLongitudeLatitude() || areaCRS == null || areaCRS instanceof GeographicCRS) {
+            return points;
+        }
+        output("Converting the longitudes and latitudes in " + file.getName() + " to the areas' projection");
+        try {
+            MathTransform transform;
+            synchronized (GEOTOOLS_LOCK) {
+                // (Lenient because .prj files often don't say how to convert between datums, in
+                // which case the difference between them, up to about 100m, is ignored)
+                transform = CRS.findMathTransform(DefaultGeographicCRS.WGS84, areaCRS, true);
+            }
+            return points.transform(transform);
+        }
+        catch (FactoryException e) {
+            e.printStackTrace();
+            error("Could not convert the points in " + file.getName() + " to the projection of the areas: "
+                    + e.getMessage());
+        }
+        catch (TransformException e) {
+            e.printStackTrace();
+            error("Could not convert the points in " + file.getName() + " to the projection of the areas: "
+                    + e.getMessage());
+        }
+        return null;
+    }
 
-        // A template for all cells
-        Cell cellTemplate = new Cell(box.minX, box.minY,
-                ((double) box.width() / size) + box.minX,
-                ((double) box.height() / size) + box.minY);
+    /** Warn if some of the rows in a point file didn't have a point and were left out */
+    private void reportSkipped(PointSet points, File file) {
+        if (points.getNumSkipped() > 0) {
+            error("Warning: skipped " + points.getNumSkipped() + " rows without coordinates in "
+                    + file.getName() + ", " + points.size() + " points were read.");
+        }
+    }
 
-//        output("Creating regular grid with cells that are " + (1.0 / size) * 100 + " percent of total size, " + Math.pow(size, 2) + " cells will be used.\n");\
+    /**
+     * Read the points in a file, or get them from the dataset cache if they are there.
+     * @return The points, or null if they couldn't be read.
+     */
+    private PointSet loadPoints(final File file, final ForkJoinPool pool) {
+        if (this.datasetCache == null) {
+            return readPoints(file, pool);
+        }
+        try {
+            final boolean[] loaded = new boolean[1];
+            PointSet points = this.datasetCache.getPoints(file, new Callable<PointSet>() {
 
-        double minX, minY, maxX, maxY;
-//        Cell currCell;
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                minX = cellTemplate.minX + (i * (cellTemplate.width())); // minX
-                minY = cellTemplate.minY + (j * (cellTemplate.height())); // minY
-                maxX = minX + cellTemplate.width(); // maxX
-                maxY = minY + cellTemplate.height(); // maxY
-                // Construct a polygon geometry from the cell to create a new Area object
-                areas.add(new Area(new Cell(minX, minY, maxX, maxY).createGeometry()));
+                public PointSet call() throws Exception {
+                    loaded[0] = true;
+                    return readPoints(file, pool);
+                }
+            });
+            if (!loaded[0] && points != null) {
+                output("Using cached points from " + file.getName());
             }
+            return points;
+        }
+        catch (IOException e) {
+            e.printStackTrace(); // Not fatal, just don't use the cache
+            return readPoints(file, pool);
         }
-
-        return areas;
     }
 
-    /** Write the areas to a shapefile. Assumes some areas have already been
-     * read in (the shapefile used to aggregate areas) and these are used as a
-     * basis for creating the new features.
-     * Code from:
-     * <url>http://docs.codehaus.org/display/GEOTDOC/05+SHP2SHP+Lab</url>
-     * @param areas2 The areas to write out.
-     * @param areaShapefile2 The shapefile location.
+    /**
+     * Read the areas in the area shapefile, or copy them from the dataset cache if they are
+     * there. Stores their feature type and projection in the run's context in the same way as
+     * <code>readShapefile()</code>.
+     * @param pool Used to prepare the areas' geometries if they are read for the cache.
+     * @return An index of the areas if they came from the cache, otherwise null.
      */
-    private void outputNewAreas(List<Area> areas2, File areaShapefile) {
+    private PackedHilbertRTree loadAreas(final ForkJoinPool pool) {
+        if (this.datasetCache == null) {
+            readShapefile(this.areaShapefile, this.areas, this.context);
+            return null;
+        }
+        DatasetCache.AreaLayer layer;
         try {
-            checkFile(areaShapefile); // See if file needs to be deleted
-
-
-            // Create a builder to build new features from the existing ones read in initially
-            SimpleFeatureTypeBuilder featureTypeBuilder = new SimpleFeatureTypeBuilder();
-//            featureTypeBuilder.init(Area.featureSource.getFeatures().iterator().next().getFeatureType());
-            featureTypeBuilder.init(Area.featureType);
-            // Add attributes for S-index and num test/base points within the area
-            featureTypeBuilder.add(SIndexColumnName, Integer.class);
-            featureTypeBuilder.add("NumBsePts", Integer.class);
-            featureTypeBuilder.add("NumTstPts", Integer.class);
-            featureTypeBuilder.add("PctBsePts", Double.class);
-            featureTypeBuilder.add("PctTstPts", Double.class);
-            
-            // Also interested in the confidence interval (i.e. the number and lower limits to the
-            // number and percentage of base points for this area to be statistically significantly diffferent
-            featureTypeBuilder.add("ConfLow", Integer.class); // Number
-            featureTypeBuilder.add("ConfUpp", Integer.class);
-            featureTypeBuilder.add("ConfLowP", Double.class); // Percentage
-            featureTypeBuilder.add("ConfUppP", Double.class); 
-
-            // Now create a feature builder to create the new features
-            SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureTypeBuilder.buildFeatureType());
-
-            // Now create a new FeatureCollection, using the existing features
-            FeatureCollection<SimpleFeatureType, SimpleFeature> outFeatures = FeatureCollections.newCollection();
-            for (Area a : areas2) {
-                SimpleFeature newFeature;
-                SimpleFeature existingFeature = a.feature;
-                // Build a new feature from the existing, using newFeatureType
-                newFeature = featureBuilder.buildFeature(existingFeature.getIdentifier().getID());
-                for (int i = 0; i < existingFeature.getAttributeCount(); i++) {
-                    newFeature.setAttribute(i, existingFeature.getAttribute(i));
+            final boolean[] loaded = new boolean[1];
+            layer = this.datasetCache.getAreas(this.areaShapefile, new Callable<DatasetCache.AreaLayer>() {
+
+                public DatasetCache.AreaLayer call() throws Exception {
+                    loaded[0] = true;
+                    List<Area> layerAreas = new ArrayList<Area>();
+                    RunContext layerContext = new RunContext();
+                    readShapefile(areaShapefile, layerAreas, layerContext);
+                    if (layerAreas.isEmpty()) {
+                        return null; // (Don't cache a file that couldn't be read)
+                    }
+                    // Prepare and index the areas now so they are ready for the next test
+                    Area.prepareAll(layerAreas, pool);
+                    return new DatasetCache.AreaLayer(layerAreas, layerContext.getAreaFeatureType(),
+                            layerContext.getCRS(), loadAreaTree(layerAreas));
                 }
-
-                newFeature.setAttribute(SIndexColumnName, a.sVal);
-                
-                newFeature.setAttribute("NumBsePts", a.numBasePoints);
-                newFeature.setAttribute("NumTstPts", a.absNumTestPoints);
-                newFeature.setAttribute("PctBsePts", a.percentageBasePoints);
-                newFeature.setAttribute("PctTstPts", a.absPercentageTestPoints);
-                
-                // Also add the confidence intervals. Do the percentages, which are actually used in the analysis,
-                // and also calculate the associated counts of points (useful to report but not actually used)
-
-                newFeature.setAttribute("ConfLowP", a.pTestPoitsNoOutliers.get(0));
-                newFeature.setAttribute("ConfUppP", a.pTestPoitsNoOutliers.get(a.pTestPoitsNoOutliers.size()-1));
-                
-                newFeature.setAttribute("ConfLow",  
-                        Math.round(a.pTestPoitsNoOutliers.get(0) * absTotalTestPoints / 100)); // The lower bound on absolute number of points (useful to see)
-                //newFeature.setAttribute("ConfLow",  a.numTestPoitsNoOutliers.get(0)); // The lower bound on absolute number of points (useful to see)
-                newFeature.setAttribute("ConfUpp",  
-                        Math.round(a.pTestPoitsNoOutliers.get(a.pTestPoitsNoOutliers.size()-1) * absTotalTestPoints / 100));
-                //newFeature.setAttribute("ConfUpp",  a.numTestPoitsNoOutliers.get(a.numTestPoitsNoOutliers.size()-1));
-                
-
-                
-                outFeatures.add(newFeature);
-            }
-//            }
-//            finally {
-//                Area.featureSource.getFeatures().close(it);
-//            }
-            // Finally create a shapefile from the FeatureCollection
-            File newFile = areaShapefile;
-            DataStoreFactorySpi factory = new ShapefileDataStoreFactory();
-
-            Map<String, Serializable> create = new HashMap<String, Serializable>();
-            create.put("url", newFile.toURI().toURL());
-            create.put("create spatial index", Boolean.TRUE);
-
-            ShapefileDataStore newDataStore = (ShapefileDataStore) factory.createNewDataStore(create);
-            newDataStore.createSchema(outFeatures.getSchema());
-
-            Transaction transaction = new DefaultTransaction("create");
-
-            String typeName = newDataStore.getTypeNames()[0];
-            FeatureStore<SimpleFeatureType, SimpleFeature> featureStore;
-            featureStore = (FeatureStore<SimpleFeatureType, SimpleFeature>) newDataStore.getFeatureSource(typeName);
-
-            featureStore.setTransaction(transaction);
-            try {
-                featureStore.addFeatures(outFeatures);
-                transaction.commit();
-            }
-            catch (Exception problem) {
-                problem.printStackTrace();
-                transaction.rollback();
-            }
-            finally {
-                transaction.close();
+            });
+            if (!loaded[0] && layer != null) {
+                output("Using cached areas from " + this.areaShapefile.getName());
             }
         }
         catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            e.printStackTrace(); // Not fatal, just don't use the cache
+            layer = null;
+        }
+        if (layer == null) {
+            readShapefile(this.areaShapefile, this.areas, this.context);
+            return null;
         }
+        // The cached areas are never changed, this test stores its results in copies
+        this.areas = layer.copyAreas();
+        this.context.setAreaFeatureType(layer.getFeatureType());
+        this.context.setCRS(layer.getCRS());
+        return layer.getTree();
     }
 
-    /** Create new grid polygon objects and write them to a shapefile.
-     * Unlike outputNewAreas() function, this one doesn't assume that some
-     * areas have already been read in.
-     * http://docs.geotools.org/latest/userguide/tutorial/feature/csv2shp.htm
-     * @param areas2 The areas to write out.
-     * @param areaShapefile2 The shapefile location.
+    /**
+     * Find the projection of a file of points.
+     * @return The projection, or null if it isn't known. CSV files don't say what projection
+     * they use; leaving it unknown means grids are written as WGS84, which is right for
+     * longitude/latitude files.
      */
-    private void outputNewGrids(List<Area> areas2, File areaShapefile) {
-        try {
+    private static CoordinateReferenceSystem readCRS(File file) {
+        if (file.getName().toLowerCase().endsWith(".csv")) {
+            return null;
+        }
+        return ShapefilePointReader.readCRS(file);
+    }
 
-            checkFile(areaShapefile); // See if file needs to be deleted
-
-            // Work out the CRS ID (either from a previous shapefile or useing WGS84 as default)
-            int srid = SpatialTestAlg.crs==null ?
-                CRS.lookupEpsgCode(DefaultGeographicCRS.WGS84, true) :
-                CRS.lookupEpsgCode(SpatialTestAlg.crs, true);
-            // Need to describe data manually because no shapefile existing features to use as a definition.
-            final SimpleFeatureType TYPE = DataUtilities.createType("Location",
-                    //                    "location:Point:srid=4326," + // <- the geometry attribute: Point type
-                    "location:Polygon:srid="+srid+","
-                    + SIndexColumnName + ":Integer,"
-                    + "NumBsePts:Integer,"
-                    + "NumTstPts:Integer,"
-                    + "PctBsePts:Double,"
-                    + "PctTstPts:Double,"
-                    + "ConfLow:Integer"
-                    + "ConfUpp:Integer"
-                    + "ConfLowP:Double"
-                    + "ConfUppP:Double"
-            );
-            
-            SimpleFeatureCollection collection = FeatureCollections.newCollection();
-
-            GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
-            SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(TYPE);
-
-            // Now create a new FeatureCollection, using the existing features
-            FeatureCollection<SimpleFeatureType, SimpleFeature> outFeatures = FeatureCollections.newCollection();
-            for (Area a : areas2) {
-                SimpleFeature newFeature;
-                newFeature = featureBuilder.buildFeature(String.valueOf(SpatialTestAlg.gridIDs++));
-
-                newFeature.setDefaultGeometry(a.geometry);
-                newFeature.setAttribute(SIndexColumnName, a.sVal);
-                newFeature.setAttribute("NumBsePts", a.numBasePoints);
-                newFeature.setAttribute("NumTstPts", a.absNumTestPoints);
-                newFeature.setAttribute("PctBsePts", a.percentageBasePoints);
-                newFeature.setAttribute("PctTstPts", a.absPercentageTestPoints);
-                
-                newFeature.setAttribute("ConfLower", -1); // -1 for now as I need to go back and remember the number of points
-                newFeature.setAttribute("ConfUpper", -1);
-                newFeature.setAttribute("ConfLowP", a.pTestPoitsNoOutliers.get(0));
-                newFeature.setAttribute("ConfUppP", a.pTestPoitsNoOutliers.get(a.pTestPoitsNoOutliers.size()-1));
-                
-
-
-                outFeatures.add(newFeature);
-            }
-//            }
-//            finally {
-//                Area.featureSource.getFeatures().close(it);
-//            }
-            // Finally create a shapefile from the FeatureCollection
-            File newFile = areaShapefile;
-            DataStoreFactorySpi factory = new ShapefileDataStoreFactory();
-
-            Map<String, Serializable> create = new HashMap<String, Serializable>();
-            create.put("url", newFile.toURI().toURL());
-            create.put("create spatial index", Boolean.TRUE);
-
-            ShapefileDataStore newDataStore = (ShapefileDataStore) factory.createNewDataStore(create);
-            newDataStore.createSchema(TYPE);
-
-//            newDataStore.forceSchemaCRS(SpatialTestAlgv2.crs); // necessary?
-
-            Transaction transaction = new DefaultTransaction("create");
-
-            String typeName = newDataStore.getTypeNames()[0];
-            FeatureStore<SimpleFeatureType, SimpleFeature> featureStore;
-            featureStore = (FeatureStore<SimpleFeatureType, SimpleFeature>) newDataStore.getFeatureSource(typeName);
-
-            featureStore.setTransaction(transaction);
+    /**
+     * Read a shapefile and return a list of geometries of all objects. Code from
+     * <url>http://docs.codehaus.org/display/GEOTDOC/04+How+to+Read+a+Shapefile</url>
+     * @param file The shapefile to read
+     * @param areas Optional list of areas. This can be used to create objects of type
+     * <code>Area</code>; they will be stored in the given array (if the argument is non-null).
+     * Could/should be a in a separate method really, but that would mean lots of code repetition.
+     * @param context Optional; if given, the projection and feature type of the shapefile are
+     * stored in it (needed to write the areas out again).
+     * @return A list of geometries read in from the shapefile.
+     */
+    private static List<Geometry> readShapefile(File file, List<Area> theAreas, RunContext context) {
+        List<Geometry> geometryList = new ArrayList<Geometry>();
+        // Connection to the shapefile
+        Map<String, Serializable> connectParameters = new HashMap<String, Serializable>();
+
+        synchronized (GEOTOOLS_LOCK) {
             try {
-                featureStore.addFeatures(outFeatures);
-                transaction.commit();
+                connectParameters.put("url", file.toURI().toURL());
+                connectParameters.put("create spatial index", true);
+                DataStore dataStore = DataStoreFinder.getDataStore(connectParameters);
+
+                // we are now connected
+                String[] typeNames = dataStore.getTypeNames();
+                String typeName = typeNames[0];
+
+                FeatureSource<SimpleFeatureType, SimpleFeature> featureSource = dataStore.getFeatureSource(typeName);
+                // Remember the CRS and feature type, useful for building output features
+                if (context != null) {
+                    context.setCRS(featureSource.getInfo().getCRS());
+                    context.setAreaFeatureType(featureSource.getSchema());
+                }
+                FeatureCollection<SimpleFeatureType, SimpleFeature> collection = featureSource.getFeatures();
+                FeatureIterator<SimpleFeature> iterator = collection.features();
+
+                try {
+                    while (iterator.hasNext()) {
+                        SimpleFeature feature = iterator.next();
+                        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                        geometryList.add(geometry);
+                        if (theAreas != null) {
+                            Area a = new Area(geometry);
+                            a.feature = feature;
+                            theAreas.add(a);
+                        }
+                    }
+                }
+                finally {
+                    if (iterator != null) {
+                        iterator.close();
+                    }
+                }
             }
-            catch (Exception problem) {
-                problem.printStackTrace();
-                transaction.rollback();
+            catch (MalformedURLException e) {
+                e.printStackTrace();
             }
-            finally {
-                transaction.close();
+            catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        return geometryList;
+    } // read pointsShapefile
+
+    /**
+     * Create an <code>Area</code> for each occupied cell in a regular grid, in the same
+     * order as the area ids used by the grid. The areas don't have geometries, these are
+     * created when the areas are written out (see <code>ShapefileResultWriter</code>).
+     * @param grid The grid
+     * @return
+     */
+    private static List<Area> createRegularGrid(GridIndex grid) {
+        List<Area> areas = new ArrayList<Area>(grid.size());
+        for (int i = 0; i < grid.size(); i++) {
+            areas.add(new Area(null));
+        }
+        return areas;
+    }
+
+    /**
+     * Create writers for the output shapefile (deleting the file first if it exists) and
+     * the other outputs that have been chosen. The other outputs go next to the shapefile:
+     * binary columns in a directory called <code>[name]_columns</code> and a CSV file called
+     * <code>[name].csv</code>.
+     * @param grid The grid that the areas are cells of, or null if areas were read from a shapefile.
+     * @return The writers (any that couldn't be created are left out).
+     */
+    private List<ResultWriter> createResultWriters(GridIndex grid) {
+        List<ResultWriter> writers = new ArrayList<ResultWriter>();
+        if (this.outputShapefile == null) {
+            return writers;
+        }
+        String name = this.outputShapefile.getName();
+        if (name.toLowerCase().endsWith(".shp")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        try {
+            checkFile(this.outputShapefile); // See if file needs to be deleted
+            SimpleFeatureType type;
+            synchronized (GEOTOOLS_LOCK) {
+                type = grid == null
+                        ? createAreaFeatureType(this.context.getAreaFeatureType())
+                        : createGridFeatureType(this.context.getCRS());
+            }
+            writers.add(new ShapefileResultWriter(this.outputShapefile, type, grid, this.writeEmptyCells,
+                    this.absTotalTestPoints));
+        }
         catch (SchemaException ex) {
             ex.printStackTrace();
         }
@@ -591,9 +957,91 @@ public class SpatialTestAlg {
             ex.printStackTrace();
         }
         catch (IOException e) {
-            // TODO Auto-generated catch block
             e.printStackTrace();
         }
+        try {
+            if (this.columnarResults) {
+                File directory = new File(this.outputShapefile.getAbsoluteFile().getParentFile(), name + "_columns");
+                output("Writing results columns to: " + directory.getName());
+                writers.add(new ColumnarResultWriter(directory, grid, this.absTotalTestPoints));
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            if (this.csvResults) {
+                File csv = new File(this.outputShapefile.getAbsoluteFile().getParentFile(), name + ".csv");
+                output("Writing results CSV file: " + csv.getName());
+                writers.add(new CsvResultWriter(csv, grid, this.absTotalTestPoints));
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return writers;
+    }
+
+    private static void closeResultWriter(ResultWriter writer) {
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Create the type of the output features for areas that were read from a shapefile. The
+     * new features have all the attributes of the features that were read in initially, and
+     * attributes for the results.
+     * Code from:
+     * <url>http://docs.codehaus.org/display/GEOTDOC/05+SHP2SHP+Lab</url>
+     * @param areaFeatureType The type of the features that were read in.
+     */
+    private static SimpleFeatureType createAreaFeatureType(SimpleFeatureType areaFeatureType) {
+        // Create a builder to build new features from the existing ones read in initially
+        SimpleFeatureTypeBuilder featureTypeBuilder = new SimpleFeatureTypeBuilder();
+        featureTypeBuilder.init(areaFeatureType);
+        // Add attributes for S-index and num test/base points within the area
+        featureTypeBuilder.add(SIndexColumnName, Integer.class);
+        featureTypeBuilder.add("NumBsePts", Integer.class);
+        featureTypeBuilder.add("NumTstPts", Integer.class);
+        featureTypeBuilder.add("PctBsePts", Double.class);
+        featureTypeBuilder.add("PctTstPts", Double.class);
+
+        // Also interested in the confidence interval (i.e. the number and lower limits to the
+        // number and percentage of base points for this area to be statistically significantly diffferent
+        featureTypeBuilder.add("ConfLow", Integer.class); // Number
+        featureTypeBuilder.add("ConfUpp", Integer.class);
+        featureTypeBuilder.add("ConfLowP", Double.class); // Percentage
+        featureTypeBuilder.add("ConfUppP", Double.class);
+        return featureTypeBuilder.buildFeatureType();
+    }
+
+    /** Create the type of the output features for grid cells. Unlike createAreaFeatureType(),
+     * this one doesn't assume that some areas have already been read in.
+     * http://docs.geotools.org/latest/userguide/tutorial/feature/csv2shp.htm
+     * @param crs The projection of the input points (or null if it isn't known).
+     */
+    private static SimpleFeatureType createGridFeatureType(CoordinateReferenceSystem crs)
+            throws FactoryException, SchemaException {
+        // Work out the CRS ID (either from a previous shapefile or useing WGS84 as default)
+        int srid = crs==null ?
+            CRS.lookupEpsgCode(DefaultGeographicCRS.WGS84, true) :
+            CRS.lookupEpsgCode(crs, true);
+        // Need to describe data manually because no shapefile existing features to use as a definition.
+        return DataUtilities.createType("Location",
+                "location:Polygon:srid="+srid+","
+                + SIndexColumnName + ":Integer,"
+                + "NumBsePts:Integer,"
+                + "NumTstPts:Integer,"
+                + "PctBsePts:Double,"
+                + "PctTstPts:Double,"
+                + "ConfLow:Integer,"
+                + "ConfUpp:Integer,"
+                + "ConfLowP:Double,"
+                + "ConfUppP:Double"
+        );
     }
 
     /**
@@ -620,46 +1068,15 @@ public class SpatialTestAlg {
 
     }
 
-    /** Finds this number of points within the given area */
-    private static int findPointsWithin(Area area, List<Geometry> inputPoints) {
-//       // Check the areas are valid to prevent a TopologyException ("side location conflict")
-//       // (http://lists.refractions.net/pipermail/jts-devel/2008-May/002466.html)
-//       if (!area.geometry.isValid()) {
-//          System.out.println("Area is not valid");
-//          GeometrySnapper.computeOverlaySnapTolerance(bigPolygon, areaToRemove );
-//          GeometrySnapper snapper = new GeometrySnapper(area.geometry);
-//          Geometry snapped = snapper.snapTo(area.geometry, snapTolerance);
-//		// need to "clean" snapped geometry - use buffer(0) as a simple way to do this
-//		Geometry fix = snapped.buffer(0);
-//       }
-        int numPoints = 0;
-        for (Geometry g : inputPoints) {
-            if (g.within(area.geometry)) {
-                numPoints++;
-            }
-        }
-        return numPoints;
-    }
-
     /**
-     * Return an X% sample from the input list. */
-    private static List<Geometry> sample(List<Geometry> inputList,
-            int percentage) {
-        // Copy the input list
-        List<Geometry> copy = new ArrayList<Geometry>(inputList.size());
-        for (int i = 0; i < inputList.size(); i++) {
-            copy.add(i, inputList.get(i));
-        }
-        // Shuffle the copy
-        Collections.shuffle(copy);
-        // Remove the first 100-percentage number of points
-        int numPointsToRemove = (int) Math.round(copy.size() * ((100 - percentage) / 100.0));
-        int i = 0;
-        while (i < numPointsToRemove) {
-            copy.remove(i);
-            i++;
+     * Convert a number of points in an area to a percentage of the given total (0 if the
+     * total is 0).
+     */
+    private static double percentage(int num, int total) {
+        if (total > 0) { // Check for divide by 0 error
+            return 100.0 * ((double) num / (double) total);
         }
-        return copy;
+        return 0.0;
     }
 
     /*
@@ -673,6 +1090,189 @@ public class SpatialTestAlg {
         this.samplePercentage = p;
     }
 
+    /**
+     * Set the number of threads used to run the Monte-Carlo simulation (by default one for
+     * each available processor). The results don't depend on the number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Set the seed for the random numbers used to sample the test points. Running with the
+     * same seed and inputs gives the same results (a random seed is used by default).
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Choose how the test points are sampled in each Monte-Carlo run. If false (the default)
+     * individual points are sampled. If true the number of sampled points in each area are
+     * drawn directly from a multivariate hypergeometric distribution, which gives counts with
+     * exactly the same distribution but is much quicker when there are lots of points.
+     */
+    public void setHypergeometricSampling(boolean b) {
+        this.hypergeometricSampling = b;
+    }
+
+    public boolean isHypergeometricSampling() {
+        return this.hypergeometricSampling;
+    }
+
+    /**
+     * Choose whether to keep the counts from every Monte-Carlo run (false, the default) or
+     * only the largest and smallest counts in each area that are needed to work out the
+     * confidence interval (true). The results are the same, but with streaming bounds the
+     * memory used doesn't grow with the number of runs.
+     */
+    public void setStreamingBounds(boolean b) {
+        this.streamingBounds = b;
+    }
+
+    /**
+     * Choose whether to also write the results as binary columns (with a JSON header) that
+     * can be memory-mapped by other programs (see <code>ColumnarResultWriter</code>).
+     */
+    public void setColumnarResults(boolean b) {
+        this.columnarResults = b;
+    }
+
+    public boolean isColumnarResults() {
+        return this.columnarResults;
+    }
+
+    /**
+     * Choose whether to also write the results to a CSV file.
+     */
+    public void setCsvResults(boolean b) {
+        this.csvResults = b;
+    }
+
+    public boolean isCsvResults() {
+        return this.csvResults;
+    }
+
+    /**
+     * Set a file to save the number of sampled test points in every area in every Monte-Carlo
+     * run to (null, the default, means the counts aren't saved). The results can then be
+     * recalculated, e.g. with a different confidence interval, by <code>reevaluate()</code>.
+     * Can't be used with streaming bounds, which don't keep all the counts.
+     */
+    public void setCountsFile(File f) {
+        this.countsFile = f;
+    }
+
+    public File getCountsFile() {
+        return this.countsFile;
+    }
+
+    /**
+     * Choose whether <code>runAlgorithm()</code> runs the Monte-Carlo simulation (false, the
+     * default) or recalculates the results from the counts saved in the counts file by an
+     * earlier run (true, see <code>reevaluate()</code>). The points aren't needed to
+     * recalculate the results.
+     */
+    public void setReevaluate(boolean b) {
+        this.reevaluate = b;
+    }
+
+    public boolean isReevaluate() {
+        return this.reevaluate;
+    }
+
+    /**
+     * Set a directory to cache the areas that points are within (null, the default, means
+     * nothing is cached). When the same point and area files are used again, e.g. with
+     * different parameters, the points don't need to be tested against the areas. Entries
+     * are named by a hash of the file contents, so they are never used if the files change.
+     * Only used when the areas are read from a shapefile.
+     */
+    public void setCacheDirectory(File directory) {
+        this.cacheDirectory = directory;
+    }
+
+    public File getCacheDirectory() {
+        return this.cacheDirectory;
+    }
+
+    /**
+     * Set whether to save the index of the areas next to the area shapefile (in a file with
+     * the extension <code>.hrt</code>) so it doesn't have to be built again next time the
+     * shapefile is used (default true). The saved index isn't used if the shapefile changes.
+     */
+    public void setSaveAreaIndex(boolean saveAreaIndex) {
+        this.saveAreaIndex = saveAreaIndex;
+    }
+
+    public boolean isSaveAreaIndex() {
+        return this.saveAreaIndex;
+    }
+
+    /**
+     * Set a cache to get the points and areas from if they have been read already, and to
+     * store them in for later tests (null, the default, means files are always read).
+     */
+    public void setDatasetCache(DatasetCache cache) {
+        this.datasetCache = cache;
+    }
+
+    public DatasetCache getDatasetCache() {
+        return this.datasetCache;
+    }
+
+    /**
+     * Set a pool to run the parallel parts of the test in, shared with other tests (null, the
+     * default, means the test creates its own pool with <code>getThreads()</code> threads).
+     * The pool isn't shut down when the test finishes.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.sharedPool = pool;
+    }
+
+    public ForkJoinPool getPool() {
+        return this.sharedPool;
+    }
+
+    /**
+     * Set a budget to reserve the test's working memory from before the Monte-Carlo
+     * simulation starts (null, the default, means no limit). See <code>MemoryBudget</code>.
+     */
+    public void setMemoryBudget(MemoryBudget budget) {
+        this.memoryBudget = budget;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Run the Monte-Carlo simulation in separate processes (see <code>WorkerPool</code>), each
+     * with its own heap, rather than in this one. The threads are shared out between the
+     * processes. The results are the same however many processes are used.
+     * @param workerProcesses The number of processes (0, the default, runs the simulation in
+     * this process).
+     */
+    public void setWorkerProcesses(int workerProcesses) {
+        this.workerProcesses = workerProcesses;
+    }
+
+    public int getWorkerProcesses() {
+        return this.workerProcesses;
+    }
+
+    public boolean isStreamingBounds() {
+        return this.streamingBounds;
+    }
+
     private void output(String output) {
 //        System.out.println(output);
         if (this.console != null) {
@@ -727,6 +1327,19 @@ public class SpatialTestAlg {
         return this.gridSize;
     }
 
+    /**
+     * Choose whether the output shapefile for a grid has a polygon for every cell (true, the
+     * default) or only for the cells that have points in them. Empty cells always have an S
+     * value of 0, but with a very large grid writing them all can make the shapefile huge.
+     */
+    public void setWriteEmptyCells(boolean b) {
+        this.writeEmptyCells = b;
+    }
+
+    public boolean isWriteEmptyCells() {
+        return this.writeEmptyCells;
+    }
+
     public File getOutputShapefile() {
         return outputShapefile;
     }
@@ -0,0 +1,425 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the test from the command line, without the GUI, using the parameters in a
+ * <code>params.txt</code> file. Nothing from Swing is loaded so it can run on machines
+ * without a display.
+ * <p>
+ * Each line of the file is a parameter name, a '$' and the value; lines starting with '#'
+ * are ignored. The parameters are:
+ * <ul>
+ * <li><code>base points</code>, <code>test points</code>: the point files (shapefiles or CSV).
+ * They aren't needed to re-evaluate.</li>
+ * <li><code>area input</code>: the area shapefile (leave out to use a grid instead).</li>
+ * <li><code>area output</code>: the shapefile to write the results to.</li>
+ * <li><code>monte carlo</code>: the number of Monte-Carlo runs (default 100).</li>
+ * <li><code>sample percentage</code>: the percentage of test points in each sample (default 85).</li>
+ * <li><code>confidence interval</code>: the confidence interval (default 95).</li>
+ * <li><code>grid size</code>: the number of cells along each side of a grid, used if there is no area input.</li>
+ * <li><code>threads</code>: the number of threads (default the number of processors).</li>
+ * <li><code>worker processes</code>: the number of separate processes to run the Monte-Carlo
+ * simulation in, sharing the threads between them (default 0, run it in this process).</li>
+ * <li><code>random seed</code>: the seed for sampling the test points (default random).</li>
+ * <li><code>hypergeometric sampling</code>: <code>true</code> to draw the number of sampled
+ * points in each area directly rather than sampling the points (default <code>false</code>).</li>
+ * <li><code>streaming bounds</code>: <code>true</code> to only keep the counts needed for the
+ * confidence interval, not the counts from every run (default <code>false</code>).</li>
+ * <li><code>csv results</code>: <code>true</code> to also write the results to a CSV file
+ * (default <code>false</code>).</li>
+ * <li><code>columnar results</code>: <code>true</code> to also write the results as binary
+ * columns (default <code>false</code>).</li>
+ * <li><code>cache directory</code>: a directory to save the areas that the points are in, so
+ * they don't have to be found again the next time the same point and area files are used.</li>
+ * <li><code>counts file</code>: a file to save the counts from every Monte-Carlo run to.</li>
+ * <li><code>reevaluate</code>: <code>true</code> to recalculate the results from the counts
+ * saved in the <code>counts file</code> (e.g. with a different confidence interval) instead
+ * of running the simulation again (default <code>false</code>).</li>
+ * </ul>
+ * Relative paths are relative to the directory that the parameters file is in.
+ * <p>
+ * Several files can be run at once with a <code>JobScheduler</code> (see <code>main()</code>).
+ * <p>
+ * The exit code is 0 if every test ran, <code>EXIT_FAILED</code> if a test failed and
+ * <code>EXIT_BAD_PARAMETERS</code> if a parameters file couldn't be read or had invalid values.
+ * @author Nick Malleson
+ */
+public class SpatialTestBatch {
+
+    /** Exit code when the test could not be run */
+    public static final int EXIT_FAILED = 1;
+    /** Exit code when the parameters are invalid */
+    public static final int EXIT_BAD_PARAMETERS = 2;
+
+    /**
+     * Run the test with the parameters in one or more files.
+     * @param args The parameters files (default <code>params.txt</code>). Each one is a
+     * separate test. They can be preceded by options to run several tests at once (see
+     * <code>JobScheduler</code>): <code>--jobs N</code> the number of tests to run at once
+     * (default 1, one after the other), <code>--cpu-threads N</code> the number of threads
+     * shared by the tests (default the number of processors), <code>--memory MB</code> the
+     * working memory the tests can use at once (default the maximum heap size) and
+     * <code>--datasets N</code> the number of point and area files to keep in memory.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int jobs = 1;
+        int cpuThreads = Runtime.getRuntime().availableProcessors();
+        long memory = Runtime.getRuntime().maxMemory();
+        int maxDatasets = DatasetCache.DEFAULT_MAX_DATASETS;
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--jobs")) {
+                    jobs = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("--cpu-threads")) {
+                    cpuThreads = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("--memory")) {
+                    memory = Long.parseLong(args[++i]) << 20;
+                }
+                else if (args[i].equals("--datasets")) {
+                    maxDatasets = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+                else {
+                    files.add(new File(args[i]));
+                }
+            }
+        }
+        catch (RuntimeException e) { // (Bad number or missing value)
+            System.err.println("Invalid arguments: " + e.getMessage() + "\nUsage: SpatialTestBatch [--jobs N] "
+                    + "[--cpu-threads N] [--memory MB] [--datasets N] [params.txt ...]");
+            System.exit(EXIT_BAD_PARAMETERS);
+        }
+        if (files.isEmpty()) {
+            files.add(new File("params.txt"));
+        }
+        int exitCode = 0;
+        if (jobs <= 1) {
+            for (File f : files) {
+                exitCode = Math.max(exitCode, run(f));
+            }
+        }
+        else {
+            exitCode = runAll(files, new JobScheduler(jobs, cpuThreads, memory, maxDatasets));
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Run the tests in the given parameters files with a scheduler, so several run at once.
+     * Messages from each test start with the name of its parameters file.
+     * @return 0 if every test ran, otherwise <code>EXIT_FAILED</code> or <code>EXIT_BAD_PARAMETERS</code>.
+     */
+    public static int runAll(List<File> paramsFiles, JobScheduler scheduler) {
+        int exitCode = 0;
+        List<SpatialTestAlg> tests = new ArrayList<SpatialTestAlg>();
+        List<File> testFiles = new ArrayList<File>(); // The parameters file of each test (some may be invalid)
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (File f : paramsFiles) {
+            SpatialTestAlg st = prepare(f, "[" + f.getName() + "] ");
+            if (st == null) {
+                exitCode = EXIT_BAD_PARAMETERS;
+                continue;
+            }
+            tests.add(st);
+            testFiles.add(f);
+            results.add(scheduler.submit(st));
+        }
+        scheduler.shutdown();
+        for (int i = 0; i < tests.size(); i++) {
+            try {
+                if (results.get(i).get()) {
+                    System.out.println("[" + testFiles.get(i).getName() + "] Global S: " + tests.get(i).getGlobalS());
+                }
+                else {
+                    exitCode = Math.max(exitCode, EXIT_FAILED);
+                }
+            }
+            catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                exitCode = Math.max(exitCode, EXIT_FAILED);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return EXIT_FAILED;
+            }
+        }
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return exitCode;
+    }
+
+    /**
+     * Run the test with the parameters in a file.
+     * @return 0 if the test ran, otherwise <code>EXIT_FAILED</code> or <code>EXIT_BAD_PARAMETERS</code>.
+     */
+    public static int run(File paramsFile) {
+        SpatialTestAlg st = prepare(paramsFile, "");
+        if (st == null) {
+            return EXIT_BAD_PARAMETERS;
+        }
+        try {
+            if (!st.runAlgorithm()) {
+                return EXIT_FAILED;
+            }
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+            return EXIT_FAILED;
+        }
+        System.out.println("Global S: " + st.getGlobalS());
+        return 0;
+    }
+
+    /**
+     * Create an algorithm with the parameters in a file that writes its messages to the
+     * standard output and error streams.
+     * @param prefix Put at the start of each message.
+     * @return The algorithm, or null if the parameters couldn't be read (the problem is printed).
+     */
+    private static SpatialTestAlg prepare(File paramsFile, final String prefix) {
+        SpatialTestAlg st;
+        try {
+            st = createAlgorithm(paramsFile);
+        }
+        catch (IOException e) {
+            System.err.println("Could not read the parameters file " + paramsFile + ": " + e.getMessage());
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Invalid parameters in " + paramsFile + ": " + e.getMessage());
+            return null;
+        }
+        st.setConsole(new ConsoleWriter() {
+
+            public void writeToConsole(String text, boolean error) {
+                if (error) {
+                    System.err.println(prefix + text);
+                }
+                else {
+                    System.out.println(prefix + text);
+                }
+            }
+
+            public void writeToConsole(StackTraceElement[] stackTrace) {
+                for (StackTraceElement e : stackTrace) {
+                    System.err.println(prefix + e.toString());
+                }
+            }
+        });
+        return st;
+    }
+
+    /**
+     * Create an algorithm with the parameters in a file.
+     * @throws IllegalArgumentException If a parameter is missing or invalid.
+     */
+    static SpatialTestAlg createAlgorithm(File paramsFile) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(paramsFile),
+                Charset.forName("UTF-8")));
+        Map<String, String> params;
+        try {
+            params = readParams(in);
+        }
+        finally {
+            in.close();
+        }
+        return createAlgorithm(params, paramsFile.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Create an algorithm with the given parameters.
+     * @param params The parameters (see <code>readParams()</code>).
+     * @param dir The directory that relative paths are relative to.
+     * @throws IllegalArgumentException If a parameter is missing or invalid.
+     */
+    static SpatialTestAlg createAlgorithm(Map<String, String> params, File dir) {
+        SpatialTestAlg st = new SpatialTestAlg();
+        boolean reevaluate = params.containsKey("reevaluate") && getBoolean(params, "reevaluate");
+        st.setReevaluate(reevaluate);
+        if (params.containsKey("cache directory")) {
+            st.setCacheDirectory(getFile(params, "cache directory", dir, false));
+        }
+        if (params.containsKey("counts file") || reevaluate) {
+            st.setCountsFile(getFile(params, "counts file", dir, reevaluate));
+        }
+        // The points aren't needed to re-evaluate (but the test points give a grid's projection)
+        if (!reevaluate || params.containsKey("base points")) {
+            st.setBaseShapefile(getFile(params, "base points", dir, true));
+        }
+        if (!reevaluate || params.containsKey("test points")) {
+            st.setTestShapefile(getFile(params, "test points", dir, true));
+        }
+        st.setOutputShapefile(getFile(params, "area output", dir, false));
+        if (params.containsKey("monte carlo")) {
+            st.setMonteCarlo(getInt(params, "monte carlo", 1, Integer.MAX_VALUE));
+        }
+        if (params.containsKey("sample percentage")) {
+            st.setSamplePercentage(getInt(params, "sample percentage", 1, 100));
+        }
+        if (params.containsKey("confidence interval")) {
+            st.setConfidenceInterval(getInt(params, "confidence interval", 1, 100));
+        }
+        if (params.containsKey("threads")) {
+            st.setThreads(getInt(params, "threads", 1, Integer.MAX_VALUE));
+        }
+        if (params.containsKey("worker processes")) {
+            st.setWorkerProcesses(getInt(params, "worker processes", 0, Integer.MAX_VALUE));
+        }
+        if (params.containsKey("random seed")) {
+            try {
+                st.setSeed(Long.parseLong(params.get("random seed")));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("random seed must be a whole number, not: " + params.get("random seed"));
+            }
+        }
+        if (params.containsKey("hypergeometric sampling")) {
+            st.setHypergeometricSampling(getBoolean(params, "hypergeometric sampling"));
+        }
+        if (params.containsKey("streaming bounds")) {
+            st.setStreamingBounds(getBoolean(params, "streaming bounds"));
+        }
+        if (params.containsKey("csv results")) {
+            st.setCsvResults(getBoolean(params, "csv results"));
+        }
+        if (params.containsKey("columnar results")) {
+            st.setColumnarResults(getBoolean(params, "columnar results"));
+        }
+        // Aggregate to the area shapefile if there is one, otherwise to a regular grid
+        if (params.containsKey("area input")) {
+            st.setAreaShapefile(getFile(params, "area input", dir, true));
+            st.setUseGrid(false);
+        }
+        else if (params.containsKey("grid size")) {
+            st.setAreaShapefile(null);
+            st.setUseGrid(true);
+            st.setGridSize(getInt(params, "grid size", 1, Integer.MAX_VALUE));
+        }
+        else if (!reevaluate) { // (Re-evaluating gets the grid from the counts file)
+            throw new IllegalArgumentException("Need either an 'area input' file or a 'grid size'");
+        }
+        return st;
+    }
+
+    /**
+     * Read parameters in the <code>params.txt</code> format.
+     * @return The parameters, keyed by their (lower case) names.
+     * @throws IllegalArgumentException If a line isn't a parameter or the name isn't known.
+     */
+    static Map<String, String> readParams(BufferedReader in) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int split = line.indexOf('$');
+            if (split < 0) {
+                throw new IllegalArgumentException("Line " + lineNumber + " should be 'name$value': " + line);
+            }
+            String name = line.substring(0, split).trim().toLowerCase();
+            String value = line.substring(split + 1).trim();
+            if (!isKnown(name)) {
+                throw new IllegalArgumentException("Unknown parameter on line " + lineNumber + ": " + name);
+            }
+            if (value.length() > 0) { // (Empty values are treated as missing)
+                params.put(name, value);
+            }
+        }
+        return params;
+    }
+
+    private static boolean isKnown(String name) {
+        for (String n : new String[]{"base points", "test points", "area input", "area output",
+                    "monte carlo", "sample percentage", "confidence interval", "grid size", "threads",
+                    "worker processes", "random seed", "hypergeometric sampling", "streaming bounds",
+                    "csv results", "columnar results", "cache directory", "counts file", "reevaluate"}) {
+            if (n.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static File getFile(Map<String, String> params, String name, File dir, boolean mustExist) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        File f = new File(value);
+        if (!f.isAbsolute()) {
+            f = new File(dir, value);
+        }
+        if (mustExist && !f.isFile()) {
+            throw new IllegalArgumentException(name + " file does not exist: " + f);
+        }
+        return f;
+    }
+
+    private static int getInt(Map<String, String> params, String name, int min, int max) {
+        String value = params.get(name);
+        int i;
+        try {
+            i = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number, not: " + value);
+        }
+        if (i < min || i > max) {
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max + ", not: " + i);
+        }
+        return i;
+    }
+
+    private static boolean getBoolean(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException(name + " must be true or false, not: " + value);
+    }
+}
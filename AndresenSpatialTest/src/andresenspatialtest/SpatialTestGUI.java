@@ -23,6 +23,7 @@ import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -61,6 +62,8 @@ public class SpatialTestGUI extends JFrame {
 //   private static final int GUI_WIDTH = 1024;
     private static final int GUI_WIDTH = 1200;
     private static final int GUI_HEIGHT = 768;
+    /** The directory, next to the area file, that the areas points are in are saved to */
+    private static final String CACHE_DIRECTORY = "spatialtest_cache";
     private JXMultiSplitPane mainPane; // The main container
     // Panels to group similar tasks
     private JXTaskPaneContainer taskContainer;
@@ -81,22 +84,27 @@ public class SpatialTestGUI extends JFrame {
     private JTextField testDataText = new JTextField("Select Test Data");
     private JTextField areaDataText = new JTextField("Select Area Data");
     private JTextField outputDataText = new JTextField("Select Output Data");
+    private JTextField countsDataText = new JTextField("Select Counts File (optional)");
     // Array to simplify operations that apply to each text field
     private JTextField[] browseButtonTextFields =
-            new JTextField[]{baseDataText, testDataText, areaDataText, outputDataText};
+            new JTextField[]{baseDataText, testDataText, areaDataText, outputDataText, countsDataText};
     private File baseFile = null;
     private File testFile = null;
     private File areaFile = null;
     private File outputAreaFile = null;
+    private File countsFile = null; // Where the Monte-Carlo counts are saved (and re-evaluated from)
     private JButton browseBaseFile = new JButton("Browse Base Data");
     private JButton browseTestFile = new JButton("Browse Test Data");
     private JButton browseAreaFile = new JButton("Browse Area Data");
     private JButton browseOutputFile = new JButton("Browse Output Data");
+    private JButton browseCountsFile = new JButton("Browse Counts File");
     // Array to simplify operations that apply to each button
     private JButton[] browsButtons =
-            new JButton[]{browseBaseFile, browseTestFile, browseAreaFile, browseOutputFile};
+            new JButton[]{browseBaseFile, browseTestFile, browseAreaFile, browseOutputFile, browseCountsFile};
     // Always use same file chooser throughout program (remembers current dir etc)
     private JFileChooser chooser;
+    private ExampleFileFilter shapefileFilter; // Areas and output must be shapefiles
+    private ExampleFileFilter pointsFilter; // Points can also be read from CSV files
     // Model parameters
     private int monteCarlo = 100;
     private int sampleSizePct = 85;
@@ -116,7 +124,10 @@ public class SpatialTestGUI extends JFrame {
     private JLabel areaMethodButtonLabel = new JLabel("Area type");
     private JTextField gridSizeText = new JTextField(gridSize + "");
     private JLabel gridSizeLabel = new JLabel("Size of grid cells");
+    // Whether to save the areas that points are in next to the area file, so they aren't found again
+    private JCheckBox cacheAreasBox = new JCheckBox("Remember which areas points are in");
     private JButton runButton = new JButton("Run");
+    private JButton reevaluateButton = new JButton("Re-evaluate saved counts");
 
     public SpatialTestGUI() {
         initComponents();
@@ -241,6 +252,8 @@ public class SpatialTestGUI extends JFrame {
         this.fileTaskGroup.add(this.browseAreaFile, 5);
         this.fileTaskGroup.add(this.outputDataText, 6);
         this.fileTaskGroup.add(this.browseOutputFile, 7);
+        this.fileTaskGroup.add(this.countsDataText, 8);
+        this.fileTaskGroup.add(this.browseCountsFile, 9);
 
 //      this.fileTaskGroup.add(baseP, 0);
 //      this.fileTaskGroup.add(testP, 1);
@@ -279,6 +292,7 @@ public class SpatialTestGUI extends JFrame {
         this.paramsTaskGroup.add(radioPanel);
         this.paramsTaskGroup.add(this.gridSizeLabel);
         this.paramsTaskGroup.add(this.gridSizeText);
+        this.paramsTaskGroup.add(this.cacheAreasBox);
 
         // Need an action listener for the radio buttons (use a single listener
         // for all radio buttons
@@ -293,6 +307,7 @@ public class SpatialTestGUI extends JFrame {
                     SpatialTestGUI.this.gridSizeLabel.setVisible(false);
                     SpatialTestGUI.this.browseAreaFile.setVisible(true);
                     SpatialTestGUI.this.areaDataText.setVisible(true);
+                    SpatialTestGUI.this.cacheAreasBox.setVisible(true);
 
                 }
                 else if (e.getActionCommand().equals(SpatialTestGUI.this.areaMethodGridString)) {
@@ -303,6 +318,7 @@ public class SpatialTestGUI extends JFrame {
                     SpatialTestGUI.this.gridSizeLabel.setVisible(true);
                     SpatialTestGUI.this.browseAreaFile.setVisible(false);
                     SpatialTestGUI.this.areaDataText.setVisible(false);
+                    SpatialTestGUI.this.cacheAreasBox.setVisible(false); // (Only used with a shapefile)
                 }
                 else { // error
                     String str = "Internal error: "
@@ -424,11 +440,20 @@ public class SpatialTestGUI extends JFrame {
         this.runButton.addActionListener(new ActionListener() {
 
             public void actionPerformed(ActionEvent e) {
-                SpatialTestGUI.this.runModel();
+                SpatialTestGUI.this.runModel(false);
             }
 
         });
         this.runTaskGroup.add(this.runButton);
+        // Recalculates the results from the counts file (e.g. with a different confidence interval)
+        this.reevaluateButton.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                SpatialTestGUI.this.runModel(true);
+            }
+
+        });
+        this.runTaskGroup.add(this.reevaluateButton);
 
         //  ***** Create the map panel to display data and results *****
 //      this.mapPane = new JMapPane();
@@ -467,10 +492,14 @@ public class SpatialTestGUI extends JFrame {
     private void createFileChooser() {
         if (this.chooser == null) {
             this.chooser = new JFileChooser(".");
-            ExampleFileFilter filter = new ExampleFileFilter();
-            filter.addExtension("shp");
-            filter.setDescription("ESRI Shapefiless");
-            chooser.setFileFilter(filter);
+            this.shapefileFilter = new ExampleFileFilter();
+            this.shapefileFilter.addExtension("shp");
+            this.shapefileFilter.setDescription("ESRI Shapefiless");
+            this.pointsFilter = new ExampleFileFilter();
+            this.pointsFilter.addExtension("shp");
+            this.pointsFilter.addExtension("csv");
+            this.pointsFilter.setDescription("ESRI Shapefiles and CSV files");
+            chooser.setFileFilter(this.shapefileFilter);
         }
     }
 
@@ -545,10 +574,21 @@ public class SpatialTestGUI extends JFrame {
      * console messages can be printed. Once the algorithm has finished the ModelRunner
      * calls the this.algFinished() funcion so that the GUI can display results
      * etc.
+     * @param reevaluate Whether to recalculate the results from the counts saved in the
+     * counts file by an earlier run, rather than running the simulation.
      */
-    private void runModel() {
-
-        if (this.monteCarlo < 1) {
+    private void runModel(boolean reevaluate) {
+
+        if (reevaluate) {
+            // Only the confidence interval, areas and output matter, the points and the
+            // simulation are replaced by the saved counts
+            if (this.countsFile == null || !this.countsFile.isFile()) {
+                JOptionPane.showMessageDialog(this, "Please select a counts file that was saved "
+                        + "by an earlier run to re-evaluate");
+                return;
+            }
+        }
+        else if (this.monteCarlo < 1) {
             JOptionPane.showMessageDialog(this, "Please set the number of iterations  "
                     + "to be greater than 1");
             return;
@@ -558,13 +598,13 @@ public class SpatialTestGUI extends JFrame {
                     + "is a number (integer) between 1 and 100");
             return;
         }
-        else if (this.confidenceInterval < 1 || this.confidenceInterval > 100) {
+        if (this.confidenceInterval < 1 || this.confidenceInterval > 100) {
             JOptionPane.showMessageDialog(this, "Please enter a confidence interval that "
                     + "is a number (integer) between 1 and 100");
             return;
         }
 
-        if (this.baseFile == null || this.testFile == null || this.outputAreaFile == null) {
+        if ((!reevaluate && (this.baseFile == null || this.testFile == null)) || this.outputAreaFile == null) {
             JOptionPane.showMessageDialog(this, "One of the input files has not been"
                     + " selected yet.");
             return;
@@ -574,7 +614,7 @@ public class SpatialTestGUI extends JFrame {
             JOptionPane.showMessageDialog(this, "Please select an area file to aggregate points to");
             return;
         }
-        else if (this.areaMethodGrid.isSelected() && this.gridSize < 1) {
+        else if (!reevaluate && this.areaMethodGrid.isSelected() && this.gridSize < 1) {
             JOptionPane.showMessageDialog(this, "The grid size must be greater than 0");
             return;
         }
@@ -586,11 +626,16 @@ public class SpatialTestGUI extends JFrame {
         st.setMonteCarlo(monteCarlo);
         st.setSamplePercentage(sampleSizePct);
         st.setConfidenceInterval(confidenceInterval);
+        st.setCountsFile(countsFile);
+        st.setReevaluate(reevaluate);
 
         // Tell the alg. whether to aggregate to a shapefile or a regular grid
         if (this.areaMethodShape.isSelected()) {
             st.setAreaShapefile(areaFile);
             st.setUseGrid(false);
+            if (this.cacheAreasBox.isSelected()) {
+                st.setCacheDirectory(new File(areaFile.getAbsoluteFile().getParentFile(), CACHE_DIRECTORY));
+            }
         }
         else if (this.areaMethodGrid.isSelected()) {
             st.setAreaShapefile(null);
@@ -660,9 +705,24 @@ public class SpatialTestGUI extends JFrame {
             SpatialTestGUI.this.createFileChooser(); // Create the file chooser (if it is null)
             // Choose the file
             SpatialTestGUI.this.chooser.setDialogTitle("Choose a shapefile");
+            // Base and test points can also be CSV files
+            if (e.getSource().equals(SpatialTestGUI.this.browseBaseFile)
+                    || e.getSource().equals(SpatialTestGUI.this.browseTestFile)) {
+                chooser.setFileFilter(SpatialTestGUI.this.pointsFilter);
+            }
+            else if (e.getSource().equals(SpatialTestGUI.this.browseCountsFile)) {
+                // The counts file can be called anything
+                SpatialTestGUI.this.chooser.setDialogTitle("Choose a file for the Monte-Carlo counts");
+                chooser.setFileFilter(chooser.getAcceptAllFileFilter());
+            }
+            else {
+                chooser.setFileFilter(SpatialTestGUI.this.shapefileFilter);
+            }
             int returnVal = 0;
             // Need to check whether to show the 'browse' or 'save' dialogue (for the results file)
-            if (e.getSource().equals(SpatialTestGUI.this.browseOutputFile)) {
+            // (The counts file is written by a run, or read to re-evaluate, so it can be either)
+            if (e.getSource().equals(SpatialTestGUI.this.browseOutputFile)
+                    || e.getSource().equals(SpatialTestGUI.this.browseCountsFile)) {
                 returnVal = chooser.showSaveDialog(SpatialTestGUI.this);
             }
             else {
@@ -706,13 +766,22 @@ public class SpatialTestGUI extends JFrame {
                     SpatialTestGUI.this.consoleWriter.writeToConsole("Selected output file: " + f.getName(), false);
 
 
+                }
+                else if (e.getSource().equals(SpatialTestGUI.this.browseCountsFile)) {
+                    SpatialTestGUI.this.countsFile = f;
+                    SpatialTestGUI.this.countsDataText.setText(f.getName());
+                    SpatialTestGUI.this.countsDataText.setBackground(Color.GREEN);
+                    SpatialTestGUI.this.consoleWriter.writeToConsole("Selected counts file: " + f.getName(), false);
                 }
                 else {
                     assert true : "Unrecognised action in button action listener: " + e.toString();
                 }
 
-                // Add the data to the map (unless it's the output file, this won't have been created yet
-                if (!e.getSource().equals(SpatialTestGUI.this.browseOutputFile)) {
+                // Add the data to the map (unless it's the output file, this won't have been created yet,
+                // or a CSV file, which can't be displayed)
+                if (!e.getSource().equals(SpatialTestGUI.this.browseOutputFile)
+                        && !e.getSource().equals(SpatialTestGUI.this.browseCountsFile)
+                        && !f.getName().toLowerCase().endsWith(".csv")) {
                     SpatialTestGUI.this.displayShapefile(f);
                 }
 
@@ -0,0 +1,411 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tests sent to it over HTTP, keeping recently used point and area files in memory
+ * (see <code>DatasetCache</code>) so that tests that use the same files start straight away.
+ * The server only listens on the local machine (localhost). Because a test can read and
+ * write any file, requests are also refused (with 403 Forbidden) unless their Host header is
+ * <code>localhost</code> or <code>127.0.0.1</code>, or if they have an Origin header, so a
+ * web page open in a browser can't send requests to it (directly or by DNS rebinding).
+ * <p>
+ * Requests:
+ * <ul>
+ * <li><code>POST /jobs</code>: start a test. The body has the parameters in the same format
+ * as <code>params.txt</code> (see <code>SpatialTestBatch</code>); relative paths are relative
+ * to the directory the server was started in. Returns the job id, or 409 Conflict if a job
+ * that hasn't finished writes to the same output file.</li>
+ * <li><code>GET /jobs/[id]</code>: the state of the job (<code>queued</code>,
+ * <code>running</code>, <code>finished</code> or <code>failed</code>) and the global S value
+ * once it has finished.</li>
+ * <li><code>GET /jobs/[id]/log</code>: the progress messages from the job, sent as they are
+ * written until the job has finished.</li>
+ * <li><code>GET /jobs/[id]/results</code>: the results for every area, as CSV (see
+ * <code>CsvResultWriter</code>), once the job has finished. If a later job has written to
+ * the same output file, 410 Gone is returned instead of that job's results.</li>
+ * </ul>
+ * Jobs are run by a <code>JobScheduler</code>: several can run at once, sharing the
+ * processors and the cached files, and the rest wait in the order they were sent. Finished
+ * jobs are forgotten (their output files are left alone) after <code>FINISHED_JOB_TTL</code>
+ * milliseconds, or earlier if more than <code>MAX_FINISHED_JOBS</code> have finished.
+ * @author Nick Malleson
+ */
+public class SpatialTestServer {
+
+    /** The port used if one isn't given */
+    public static final int DEFAULT_PORT = 8123;
+    /** How long (in milliseconds) a finished job is kept for */
+    public static final long FINISHED_JOB_TTL = 60 * 60 * 1000L;
+    /** The maximum number of finished jobs to keep */
+    public static final int MAX_FINISHED_JOBS = 100;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private HttpServer server;
+    private JobScheduler scheduler;
+    private Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private AtomicLong nextJobId = new AtomicLong(1);
+    /** The jobs that have finished, in the order they finished (guarded by itself) */
+    private Deque<Job> finishedJobs = new ArrayDeque<Job>();
+
+    /**
+     * Create a server (call <code>start()</code> to start it).
+     * @param port The port to listen on.
+     * @param scheduler Runs the jobs.
+     */
+    public SpatialTestServer(int port, JobScheduler scheduler) throws IOException {
+        this.scheduler = scheduler;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/jobs", new JobsHandler());
+        // (Requests for logs wait until their job has finished, so each needs its own thread)
+        this.server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    /** Stop the server, waiting for up to the given number of seconds for requests to finish */
+    public void stop(int delay) {
+        this.server.stop(delay);
+        this.scheduler.shutdownNow();
+    }
+
+    /** The port that the server is listening on */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Start a server.
+     * @param args The port (default <code>DEFAULT_PORT</code>), the maximum number of
+     * files to keep in memory (default <code>DatasetCache.DEFAULT_MAX_DATASETS</code>) and the
+     * maximum number of jobs to run at once (default the number of processors). The jobs
+     * share one thread per processor and can use as much memory as the heap.
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int processors = Runtime.getRuntime().availableProcessors();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int maxDatasets = args.length > 1 ? Integer.parseInt(args[1]) : DatasetCache.DEFAULT_MAX_DATASETS;
+        int maxJobs = args.length > 2 ? Integer.parseInt(args[2]) : processors;
+        JobScheduler scheduler = new JobScheduler(maxJobs, processors, Runtime.getRuntime().maxMemory(), maxDatasets);
+        SpatialTestServer s = new SpatialTestServer(port, scheduler);
+        s.start();
+        System.out.println("Spatial test server listening on http://localhost:" + s.getPort() + "/jobs");
+    }
+
+    /**
+     * Create a job and queue it to run.
+     * @param params The parameters, in the <code>params.txt</code> format.
+     * @throws IllegalArgumentException If the parameters are invalid.
+     * @throws IllegalStateException If a job that hasn't finished has the same output file.
+     */
+    private Job submit(InputStream params) throws IOException {
+        SpatialTestAlg st = SpatialTestBatch.createAlgorithm(
+                SpatialTestBatch.readParams(new BufferedReader(new InputStreamReader(params, UTF8))),
+                new File(".").getAbsoluteFile());
+        st.setCsvResults(true); // So the results can be sent back
+        final Job job = new Job(String.valueOf(this.nextJobId.getAndIncrement()), st);
+        st.setConsole(job);
+        // Jobs with the same output file would overwrite each other's results, so check the
+        // other jobs and add this one in one step
+        synchronized (this.jobs) {
+            for (Job other : this.jobs.values()) {
+                if (other.outputFile.equals(job.outputFile) && !other.isDone()) {
+                    throw new IllegalStateException("Job " + other.id + " is still writing to "
+                            + job.outputFile.getPath());
+                }
+            }
+            for (Job other : this.jobs.values()) {
+                if (other.outputFile.equals(job.outputFile)) {
+                    other.replacedBy = job.id;
+                }
+            }
+            this.jobs.put(job.id, job);
+        }
+        this.scheduler.submit(st, new Callable<Void>() {
+
+            public Void call() {
+                try {
+                    job.run();
+                }
+                finally { // (So the job is forgotten eventually even if it threw an Error)
+                    finished(job);
+                }
+                return null;
+            }
+        });
+        return job;
+    }
+
+    /** Record that a job has finished, forgetting the oldest finished job if there are too many */
+    private void finished(Job job) {
+        synchronized (this.finishedJobs) {
+            this.finishedJobs.addLast(job);
+            while (this.finishedJobs.size() > MAX_FINISHED_JOBS) {
+                this.jobs.remove(this.finishedJobs.removeFirst().id);
+            }
+        }
+    }
+
+    /** Forget the jobs that finished more than <code>FINISHED_JOB_TTL</code> milliseconds ago */
+    private void forgetOldJobs() {
+        long now = System.currentTimeMillis();
+        synchronized (this.finishedJobs) {
+            while (!this.finishedJobs.isEmpty()
+                    && now - this.finishedJobs.peekFirst().finishTime > FINISHED_JOB_TTL) {
+                this.jobs.remove(this.finishedJobs.removeFirst().id);
+            }
+        }
+    }
+
+    /**
+     * Check that a request came from a program on this machine rather than from a web page:
+     * the Host header must name the local machine (a DNS rebinding attack would give the
+     * attacker's host name) and there mustn't be an Origin header (browsers send one with
+     * cross-origin requests).
+     */
+    private static boolean isLocalRequest(HttpExchange exchange) {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            return false;
+        }
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null) {
+            return false;
+        }
+        host = host.trim().toLowerCase().replaceFirst(":[0-9]*$", ""); // (Remove the port)
+        return host.equals("localhost") || host.equals("127.0.0.1");
+    }
+
+    private class JobsHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!isLocalRequest(exchange)) {
+                    send(exchange, 403, "Only requests from this machine (to localhost) are allowed\n");
+                    return;
+                }
+                forgetOldJobs();
+                // Paths are /jobs, /jobs/[id] or /jobs/[id]/[log or results]
+                String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+                String method = exchange.getRequestMethod();
+                if (path.length == 1 && method.equals("POST")) {
+                    Job job;
+                    try {
+                        job = submit(exchange.getRequestBody());
+                    }
+                    catch (IllegalArgumentException e) {
+                        send(exchange, 400, "Invalid parameters: " + e.getMessage() + "\n");
+                        return;
+                    }
+                    catch (IllegalStateException e) {
+                        send(exchange, 409, e.getMessage() + "\n");
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+                    sendJson(exchange, 202, job.toJson());
+                    return;
+                }
+                Job job = path.length > 1 ? jobs.get(path[1]) : null;
+                if (job == null || !method.equals("GET")) {
+                    send(exchange, 404, "Not found\n");
+                }
+                else if (path.length == 2) {
+                    sendJson(exchange, 200, job.toJson());
+                }
+                else if (path.length == 3 && path[2].equals("log")) {
+                    job.sendLog(exchange);
+                }
+                else if (path.length == 3 && path[2].equals("results")) {
+                    job.sendResults(exchange);
+                }
+                else {
+                    send(exchange, 404, "Not found\n");
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int code, String text) throws IOException {
+        sendBytes(exchange, code, "text/plain; charset=utf-8", text.getBytes(UTF8));
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, String json) throws IOException {
+        sendBytes(exchange, code, "application/json", json.getBytes(UTF8));
+    }
+
+    private static void sendBytes(HttpExchange exchange, int code, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.flush();
+    }
+
+    /** A test, and the messages it has written so far */
+    private static class Job implements ConsoleWriter {
+
+        private String id;
+        private SpatialTestAlg st;
+        private File outputFile; // The (canonical) output shapefile, which the other results are written next to
+        private volatile String state = "queued";
+        private volatile long finishTime; // When the job finished (see System.currentTimeMillis())
+        private volatile String replacedBy = null; // A later job that writes to the same output file
+        private List<String> log = new ArrayList<String>();
+
+        Job(String id, SpatialTestAlg st) throws IOException {
+            this.id = id;
+            this.st = st;
+            this.outputFile = st.getOutputShapefile().getCanonicalFile();
+        }
+
+        void run() {
+            this.state = "running";
+            boolean success = false;
+            try {
+                success = this.st.runAlgorithm();
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+                this.writeToConsole("There was an error running the test: " + e, true);
+            }
+            finally { // (An Error mustn't leave the job running for ever)
+                synchronized (this) {
+                    this.finishTime = System.currentTimeMillis();
+                    this.state = success ? "finished" : "failed";
+                    this.notifyAll();
+                }
+            }
+        }
+
+        boolean isDone() {
+            return this.state.equals("finished") || this.state.equals("failed");
+        }
+
+        public synchronized void writeToConsole(String text, boolean error) {
+            this.log.add(error ? "ERROR: " + text : text);
+            this.notifyAll();
+        }
+
+        public synchronized void writeToConsole(StackTraceElement[] stackTrace) {
+            for (StackTraceElement e : stackTrace) {
+                this.log.add("ERROR: " + e.toString());
+            }
+            this.notifyAll();
+        }
+
+        String toJson() {
+            return "{\"id\": \"" + this.id + "\", \"state\": \"" + this.state + "\""
+                    + (this.state.equals("finished") ? ", \"globalS\": " + this.st.getGlobalS() : "")
+                    + "}\n";
+        }
+
+        /** Send the messages as they are written, until the job has finished */
+        void sendLog(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0); // (0 means the length isn't known)
+            OutputStream out = exchange.getResponseBody();
+            int sent = 0;
+            while (true) {
+                List<String> lines;
+                boolean done;
+                synchronized (this) {
+                    while (sent == this.log.size() && !this.isDone()) {
+                        try {
+                            this.wait();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    lines = new ArrayList<String>(this.log.subList(sent, this.log.size()));
+                    done = this.isDone();
+                }
+                for (String line : lines) {
+                    out.write((line + "\n").getBytes(UTF8));
+                }
+                out.flush();
+                sent += lines.size();
+                if (done) {
+                    out.write(("Job " + this.state + "\n").getBytes(UTF8));
+                    out.flush();
+                    return;
+                }
+            }
+        }
+
+        /** Send the CSV file of results */
+        void sendResults(HttpExchange exchange) throws IOException {
+            if (!this.state.equals("finished")) {
+                send(exchange, 409, "The job has not finished (it is " + this.state + ")\n");
+                return;
+            }
+            if (this.replacedBy != null) {
+                send(exchange, 410, "The results have been replaced by job " + this.replacedBy
+                        + ", which has the same output file\n");
+                return;
+            }
+            String name = this.st.getOutputShapefile().getName();
+            if (name.toLowerCase().endsWith(".shp")) {
+                name = name.substring(0, name.length() - 4);
+            }
+            File csv = new File(this.st.getOutputShapefile().getAbsoluteFile().getParentFile(), name + ".csv");
+            exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+            exchange.sendResponseHeaders(200, csv.length());
+            InputStream in = new FileInputStream(csv);
+            try {
+                OutputStream out = exchange.getResponseBody();
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                out.flush();
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+}
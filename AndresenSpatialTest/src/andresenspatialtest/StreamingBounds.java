@@ -0,0 +1,263 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Works out the confidence interval for each area without storing the counts from every
+ * Monte-Carlo run.
+ * <p>
+ * The number of outliers to remove from each end is known before the simulation starts,
+ * so for each area it is enough to remember the <code>numToRemove + 1</code> smallest and
+ * largest counts seen so far. These are kept in a fixed-size max-heap and min-heap per
+ * area, so memory is O(areas * numToRemove) however many runs there are. Each thread adds
+ * its runs to a set of heaps that no other thread is using at the time; they are merged
+ * when the bounds are needed. Heaps filled by another process (see
+ * <code>MonteCarloWorker</code>) can be merged in the same way with <code>save()</code> and
+ * <code>addSaved()</code>.
+ * <p>
+ * The bounds are exactly the same as those from a <code>CountMatrix</code>.
+ * @author Nick Malleson
+ */
+public class StreamingBounds implements RunBounds {
+
+    private int numAreas;
+    private int numToRemove;
+    /** Total number of sampled points in the first run */
+    private volatile int firstRunTotal;
+    /** Whether the first run has been added (a worker process might not do it) */
+    private volatile boolean haveFirstRun = false;
+    /** Every set of heaps that has been created, so they can be merged at the end */
+    private List<TailHeaps> allHeaps = new ArrayList<TailHeaps>();
+    /** Heaps that no thread is adding to. There are never more than one per thread, and
+     * (unlike a ThreadLocal) they aren't left attached to the threads of a shared pool. */
+    private ConcurrentLinkedQueue<TailHeaps> idleHeaps = new ConcurrentLinkedQueue<TailHeaps>();
+
+    /**
+     * Create an empty object, ready to receive counts.
+     * @param numAreas The number of areas.
+     * @param numToRemove The number of outliers that will be removed from each end.
+     */
+    public StreamingBounds(int numAreas, int numToRemove) {
+        this.numAreas = numAreas;
+        this.numToRemove = numToRemove;
+    }
+
+    public void setRun(int run, int[] areaCounts) {
+        TailHeaps heaps = this.idleHeaps.poll();
+        if (heaps == null) {
+            heaps = new TailHeaps(this.numAreas, this.numToRemove + 1);
+            synchronized (this.allHeaps) {
+                this.allHeaps.add(heaps);
+            }
+        }
+        heaps.add(areaCounts);
+        this.idleHeaps.add(heaps);
+        if (run == 0) {
+            int total = 0;
+            for (int c : areaCounts) {
+                total += c;
+            }
+            this.firstRunTotal = total;
+            this.haveFirstRun = true;
+        }
+    }
+
+    public int getFirstRunTotal() {
+        return this.firstRunTotal;
+    }
+
+    /**
+     * Find the bounds for every area. <code>numToRemove</code> must be the same as the value
+     * given to the constructor (the pool isn't used, merging the heaps is quick).
+     */
+    public void computeBounds(int numToRemove, int[] lower, int[] upper, ForkJoinPool pool) {
+        if (numToRemove != this.numToRemove) {
+            throw new IllegalArgumentException("Bounds were collected for " + this.numToRemove
+                    + " outliers, not " + numToRemove);
+        }
+        TailHeaps merged = this.merge();
+        if (merged.numRuns - 2 * numToRemove < 1) {
+            throw new IllegalArgumentException("Cannot remove " + numToRemove + " outliers from each "
+                    + "end of " + merged.numRuns + " runs, increase the number of runs or the confidence interval");
+        }
+        for (int a = 0; a < this.numAreas; a++) {
+            // The roots of the heaps are the (numToRemove+1)'th smallest and largest counts
+            lower[a] = merged.low[a * merged.capacity];
+            upper[a] = merged.high[a * merged.capacity];
+        }
+    }
+
+    /** Merge all the heaps (once every run has been added) */
+    private TailHeaps merge() {
+        TailHeaps merged = new TailHeaps(this.numAreas, this.numToRemove + 1);
+        synchronized (this.allHeaps) {
+            for (TailHeaps heaps : this.allHeaps) {
+                merged.addAll(heaps);
+            }
+        }
+        return merged;
+    }
+
+    /** The number of ints written by <code>save()</code> */
+    int getSavedSize() {
+        return 2 + this.numAreas * (1 + 2 * (this.numToRemove + 1));
+    }
+
+    /**
+     * Write the counts kept for every area (from all the threads) to a buffer, so they can
+     * be added to another object with <code>addSaved()</code>: the number of runs, the total
+     * of the first run (-1 if it wasn't one of them), then for each area the number of counts
+     * kept and the low and high heaps.
+     */
+    void save(IntBuffer out) {
+        TailHeaps merged = this.merge();
+        out.put((int) merged.numRuns).put(this.haveFirstRun ? this.firstRunTotal : -1);
+        for (int a = 0; a < this.numAreas; a++) {
+            out.put(merged.size[a]);
+            out.put(merged.low, a * merged.capacity, merged.capacity);
+            out.put(merged.high, a * merged.capacity, merged.capacity);
+        }
+    }
+
+    /**
+     * Add the counts written by <code>save()</code> (from an object with the same number of
+     * areas and outliers), as if the runs had been added here.
+     */
+    void addSaved(IntBuffer in) {
+        TailHeaps heaps = new TailHeaps(this.numAreas, this.numToRemove + 1);
+        heaps.numRuns = in.get();
+        int total = in.get();
+        if (total >= 0) {
+            this.firstRunTotal = total;
+            this.haveFirstRun = true;
+        }
+        for (int a = 0; a < this.numAreas; a++) {
+            heaps.size[a] = in.get();
+            in.get(heaps.low, a * heaps.capacity, heaps.capacity);
+            in.get(heaps.high, a * heaps.capacity, heaps.capacity);
+        }
+        synchronized (this.allHeaps) {
+            this.allHeaps.add(heaps);
+        }
+    }
+
+    /**
+     * The smallest and largest counts for every area, from some of the runs.
+     * Heaps are stored in flat arrays, <code>capacity</code> elements per area.
+     */
+    private static class TailHeaps {
+
+        private int capacity; // Number of values to keep at each end
+        private int[] low; // Max-heaps of the smallest values
+        private int[] high; // Min-heaps of the largest values
+        private int[] size; // Number of values in each area's heaps (same for both)
+        private long numRuns = 0; // Number of runs added
+
+        TailHeaps(int numAreas, int capacity) {
+            this.capacity = capacity;
+            this.low = new int[numAreas * capacity];
+            this.high = new int[numAreas * capacity];
+            this.size = new int[numAreas];
+        }
+
+        /** Add the counts from one run */
+        void add(int[] areaCounts) {
+            for (int a = 0; a < areaCounts.length; a++) {
+                this.add(a, areaCounts[a], areaCounts[a]);
+            }
+            this.numRuns++;
+        }
+
+        /**
+         * Add the values from another set of heaps. The other small values only go into the
+         * low heaps and the large ones into the high heaps (if the other heaps hold the same
+         * run in both they mustn't be counted twice).
+         */
+        void addAll(TailHeaps other) {
+            for (int a = 0; a < other.size.length; a++) {
+                int start = a * other.capacity;
+                for (int i = 0; i < other.size[a]; i++) {
+                    this.add(a, other.low[start + i], other.high[start + i]);
+                }
+            }
+            this.numRuns += other.numRuns;
+        }
+
+        /** Offer one value to an area's low heap and one to its high heap */
+        private void add(int area, int lowValue, int highValue) {
+            int start = area * this.capacity;
+            int n = this.size[area];
+            if (n < this.capacity) { // Heaps not full yet, add to both
+                siftUp(this.low, start, n, lowValue, true);
+                siftUp(this.high, start, n, highValue, false);
+                this.size[area] = n + 1;
+                return;
+            }
+            if (lowValue < this.low[start]) { // Smaller than the largest of the small values
+                siftDown(this.low, start, n, lowValue, true);
+            }
+            if (highValue > this.high[start]) { // Larger than the smallest of the large values
+                siftDown(this.high, start, n, highValue, false);
+            }
+        }
+
+        /** Add a value to the end of a heap and move it up into place */
+        private static void siftUp(int[] heap, int start, int n, int value, boolean max) {
+            int i = n;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                int p = heap[start + parent];
+                if (max ? p >= value : p <= value) {
+                    break;
+                }
+                heap[start + i] = p;
+                i = parent;
+            }
+            heap[start + i] = value;
+        }
+
+        /** Replace the root of a (full) heap and move the new value down into place */
+        private static void siftDown(int[] heap, int start, int n, int value, boolean max) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) {
+                    break;
+                }
+                int c = heap[start + child];
+                if (child + 1 < n) {
+                    int r = heap[start + child + 1];
+                    if (max ? r > c : r < c) {
+                        child++;
+                        c = r;
+                    }
+                }
+                if (max ? value >= c : value <= c) {
+                    break;
+                }
+                heap[start + i] = c;
+                i = child;
+            }
+            heap[start + i] = value;
+        }
+    }
+}
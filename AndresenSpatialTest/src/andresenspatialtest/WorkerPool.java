@@ -0,0 +1,195 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares the Monte-Carlo runs of a test out between worker processes on this machine (see
+ * <code>MonteCarloWorker</code>). Each worker does a separate range of runs; the pool writes
+ * the area ids of the test points to a file that all the workers memory-map, starts the
+ * workers with the same Java and class path as this program, and then adds each worker's
+ * counts to the test's <code>RunCounts</code>. With <code>StreamingBounds</code> the workers
+ * only send back the smallest and largest counts for each area.
+ * @author Nick Malleson
+ */
+class WorkerPool {
+
+    private int numWorkers;
+    private int threadsPerWorker;
+    private ConsoleWriter console; // Gets the workers' messages (can be null)
+
+    /**
+     * Create a pool.
+     * @param numWorkers The number of worker processes.
+     * @param threadsPerWorker The number of threads each worker uses.
+     * @param console Where to send the workers' progress messages (can be null).
+     */
+    WorkerPool(int numWorkers, int threadsPerWorker, ConsoleWriter console) {
+        this.numWorkers = numWorkers;
+        this.threadsPerWorker = threadsPerWorker;
+        this.console = console;
+    }
+
+    /**
+     * Do all the runs with the workers. The results are the same as those from running a
+     * <code>MonteCarloTask</code> over every run in this process.
+     * @param testAreaIds The area id of every test point.
+     * @param numTestPoints The number of test points.
+     * @param testCounts The number of test points in each area.
+     * @param samplePercentage The percentage of test points in each sample.
+     * @param hypergeometricSampling Whether to draw the counts of each sample directly.
+     * @param seed The seed for the simulation.
+     * @param numRuns The number of Monte-Carlo runs.
+     * @param runCounts Where to store the counts from each run.
+     * @param numToRemove The number of outliers that will be removed from each end (only used
+     * if <code>runCounts</code> is a <code>StreamingBounds</code>).
+     * @throws IOException If a worker couldn't be started or failed.
+     */
+    void run(IntBuffer testAreaIds, int numTestPoints, int[] testCounts, int samplePercentage,
+            boolean hypergeometricSampling, long seed, int numRuns, RunCounts runCounts, int numToRemove)
+            throws IOException, InterruptedException {
+        boolean streaming = runCounts instanceof StreamingBounds;
+        int numAreas = testCounts.length;
+        File directory = Files.createTempDirectory("spatialtest").toFile();
+        List<Process> processes = new ArrayList<Process>();
+        List<Thread> readers = new ArrayList<Thread>();
+        List<File> outputs = new ArrayList<File>();
+        try {
+            // Write the input that all the workers share
+            File input = new File(directory, "input");
+            ByteBuffer in = MonteCarloWorker.map(input, FileChannel.MapMode.READ_WRITE,
+                    MonteCarloWorker.INPUT_HEADER_SIZE + 4L * (numAreas + (hypergeometricSampling ? 0 : numTestPoints)));
+            in.putInt(MonteCarloWorker.INPUT_MAGIC).putInt(MonteCarloWorker.VERSION).putInt(numAreas)
+                    .putInt(numTestPoints).putInt(samplePercentage).putInt(hypergeometricSampling ? 1 : 0)
+                    .putInt(streaming ? numToRemove : -1).putLong(seed);
+            in.position(MonteCarloWorker.INPUT_HEADER_SIZE);
+            IntBuffer ints = in.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            ints.put(testCounts);
+            if (!hypergeometricSampling) {
+                for (int i = 0; i < numTestPoints; i++) {
+                    ints.put(testAreaIds.get(i));
+                }
+            }
+
+            // Start the workers, each with a range of runs
+            String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+            int workers = Math.min(this.numWorkers, numRuns);
+            for (int w = 0; w < workers; w++) {
+                int from = (int) ((long) numRuns * w / workers);
+                int to = (int) ((long) numRuns * (w + 1) / workers);
+                File output = new File(directory, "output" + w);
+                outputs.add(output);
+                ProcessBuilder builder = new ProcessBuilder(java, "-Djava.awt.headless=true",
+                        "-cp", System.getProperty("java.class.path"), MonteCarloWorker.class.getName(),
+                        input.getPath(), output.getPath(), String.valueOf(from), String.valueOf(to),
+                        String.valueOf(this.threadsPerWorker));
+                builder.redirectErrorStream(true);
+                Process p = builder.start();
+                processes.add(p);
+                readers.add(this.forwardOutput(p, "\tWorker " + (w + 1) + ":"));
+            }
+
+            // Wait for them to finish, then add their counts
+            for (int w = 0; w < workers; w++) {
+                int exitCode = processes.get(w).waitFor();
+                readers.get(w).join();
+                if (exitCode != 0) {
+                    throw new IOException("Worker " + (w + 1) + " failed (exit code " + exitCode
+                            + "), see its messages above");
+                }
+                this.addCounts(outputs.get(w), numAreas, runCounts);
+            }
+        }
+        finally {
+            for (Process p : processes) {
+                p.destroy(); // (Nothing happens if it has already finished)
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /** Add the counts written by a worker to the test's counts */
+    private void addCounts(File output, int numAreas, RunCounts runCounts) throws IOException {
+        ByteBuffer out = MonteCarloWorker.map(output, FileChannel.MapMode.READ_ONLY, output.length());
+        if (out.getInt(0) != MonteCarloWorker.OUTPUT_MAGIC || out.getInt(4) != MonteCarloWorker.VERSION) {
+            throw new IOException("A worker didn't write its results to " + output.getName());
+        }
+        int from = out.getInt(8);
+        int to = out.getInt(12);
+        out.position(MonteCarloWorker.OUTPUT_HEADER_SIZE);
+        IntBuffer ints = out.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (runCounts instanceof StreamingBounds) {
+            ((StreamingBounds) runCounts).addSaved(ints);
+        }
+        else {
+            int[] areaCounts = new int[numAreas];
+            for (int run = from; run < to; run++) {
+                ints.get(areaCounts);
+                runCounts.setRun(run, areaCounts);
+            }
+        }
+    }
+
+    /**
+     * Send the messages that a worker writes to the console (they must be read, otherwise
+     * the worker stops when the pipe is full).
+     * @return The thread that reads the messages, it finishes when the worker does.
+     */
+    private Thread forwardOutput(final Process p, final String prefix) {
+        Thread t = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (console != null) {
+                                console.writeToConsole(prefix + " " + line.trim(), false);
+                            }
+                        }
+                    }
+                    finally {
+                        reader.close();
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,90 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that base and test points are counted in the same area when areas overlap.
+ * @author Nick Malleson
+ */
+public class AreaIndexTest {
+
+    /** Create a square area */
+    static Area square(double minX, double minY, double size) {
+        GeometryFactory f = new GeometryFactory();
+        Coordinate[] c = new Coordinate[]{
+            new Coordinate(minX, minY), new Coordinate(minX + size, minY),
+            new Coordinate(minX + size, minY + size), new Coordinate(minX, minY + size),
+            new Coordinate(minX, minY)};
+        Geometry g = f.createPolygon(f.createLinearRing(c), null);
+        return new Area(g);
+    }
+
+    /** Create a set of points from pairs of coordinates */
+    static PointSet points(double... xy) {
+        DoubleBuffer xs = DoubleBuffer.allocate(xy.length / 2);
+        DoubleBuffer ys = DoubleBuffer.allocate(xy.length / 2);
+        for (int i = 0; i < xy.length / 2; i++) {
+            xs.put(i, xy[2 * i]);
+            ys.put(i, xy[2 * i + 1]);
+        }
+        return new PointSet(xs, ys, xy.length / 2);
+    }
+
+    @Test
+    public void overlappingPointsAreCountedInTheFirstArea() {
+        List<Area> areas = new ArrayList<Area>();
+        areas.add(square(0, 0, 2));
+        areas.add(square(1, 1, 2));
+        AreaIndex index = new AreaIndex(areas);
+        PointSet points = points(0.5, 0.5, 1.5, 1.5, 2.5, 2.5, 5, 5);
+
+        int[] counts = index.countPointsWithin(points);
+        assertArrayEquals(new int[]{2, 1}, counts);
+        assertEquals(1, index.getNumOverlappingPoints());
+
+        IntBuffer ids = index.assignPoints(points);
+        assertEquals(1, index.getNumOverlappingPoints());
+        assertEquals(0, ids.get(0));
+        assertEquals(0, ids.get(1));
+        assertEquals(1, ids.get(2));
+        assertEquals(AreaLocator.NO_AREA, ids.get(3));
+
+        // The base counts and the counts from the test point ids follow the same rule
+        int[] fromIds = new int[areas.size()];
+        AreaIndex.countAreaIds(ids, 0, points.size(), fromIds);
+        assertArrayEquals(counts, fromIds);
+    }
+
+    @Test
+    public void separateAreasHaveNoOverlappingPoints() {
+        List<Area> areas = new ArrayList<Area>();
+        areas.add(square(0, 0, 1));
+        areas.add(square(2, 0, 1));
+        AreaIndex index = new AreaIndex(areas);
+        assertArrayEquals(new int[]{1, 2}, index.countPointsWithin(points(0.5, 0.5, 2.5, 0.5, 2.2, 0.8)));
+        assertEquals(0, index.getNumOverlappingPoints());
+    }
+}
@@ -0,0 +1,114 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that point-to-area results saved in the assignment cache are read back and that
+ * entries are only found for the same files.
+ * @author Nick Malleson
+ */
+public class AssignmentCacheTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        this.directory = File.createTempFile("cache", "");
+        this.directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void entriesRoundTrip() throws IOException {
+        AssignmentCache cache = new AssignmentCache(this.directory);
+        String key = cache.key(AssignmentCache.AREA_IDS, new File("data/points1.shp"), new File("data/areas.shp"));
+        // (Large enough to be written in several blocks)
+        IntBuffer values = IntBuffer.allocate(600000);
+        for (int i = 0; i < values.limit(); i++) {
+            values.put(i, i % 3 == 0 ? AreaIndex.NO_AREA : i % 101);
+        }
+        cache.put(key, values, 5);
+
+        AssignmentCache.Entry entry = new AssignmentCache(this.directory).get(key, values.limit());
+        assertNotNull(entry);
+        assertEquals(5, entry.getNumOverlappingPoints());
+        assertEquals(values.limit(), entry.getValues().limit());
+        for (int i = 0; i < values.limit(); i++) {
+            assertEquals(values.get(i), entry.getValues().get(i));
+        }
+    }
+
+    @Test
+    public void entriesOfTheWrongLengthAreNotUsed() throws IOException {
+        AssignmentCache cache = new AssignmentCache(this.directory);
+        String key = cache.key(AssignmentCache.AREA_COUNTS, new File("data/points1.shp"), new File("data/areas.shp"));
+        cache.put(key, IntBuffer.wrap(new int[]{1, 2, 3}), 0);
+        assertNotNull(cache.get(key, 3));
+        assertNull(cache.get(key, 4));
+        assertNull(cache.get("missing", 3));
+    }
+
+    @Test
+    public void keysDependOnTheFileContents() throws IOException {
+        File points = new File(this.directory.getPath() + ".csv");
+        try {
+            write(points, "x,y\n1,2\n");
+            File areas = new File("data/areas.shp");
+            // (A new cache each time, as a cache only reads each file once)
+            String key = new AssignmentCache(this.directory).key(AssignmentCache.AREA_IDS, points, areas);
+            assertEquals(key, new AssignmentCache(this.directory).key(AssignmentCache.AREA_IDS, points, areas));
+            assertFalse(key.equals(new AssignmentCache(this.directory).key(AssignmentCache.AREA_COUNTS, points, areas)));
+            assertFalse(key.equals(new AssignmentCache(this.directory).key(AssignmentCache.AREA_IDS, points,
+                    new File("data/points2.shp"))));
+
+            write(points, "x,y\n1,3\n");
+            assertFalse(key.equals(new AssignmentCache(this.directory).key(AssignmentCache.AREA_IDS, points, areas)));
+        }
+        finally {
+            points.delete();
+        }
+    }
+}
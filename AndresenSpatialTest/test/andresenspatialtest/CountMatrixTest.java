@@ -0,0 +1,115 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the quickselect confidence bounds against sorting the counts.
+ * @author Nick Malleson
+ */
+public class CountMatrixTest {
+
+    @Test
+    public void selectFindsTheSameValueAsSorting() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            int n = 1 + random.nextInt(60);
+            int range = 1 + random.nextInt(trial % 2 == 0 ? 5 : 1000); // Lots of ties, or few
+            int[] a = new int[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = random.nextInt(range);
+            }
+            int[] sorted = a.clone();
+            Arrays.sort(sorted);
+            for (int k = 0; k < n; k++) {
+                int[] copy = a.clone();
+                assertEquals(sorted[k], CountMatrix.select(copy, 0, n, k));
+                // Everything before k is no bigger and everything after it no smaller
+                for (int i = 0; i < k; i++) {
+                    assertTrue(copy[i] <= sorted[k]);
+                }
+                for (int i = k + 1; i < n; i++) {
+                    assertTrue(copy[i] >= sorted[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void boundsMatchSortedCounts() {
+        int numAreas = 300, numRuns = 999; // Enough counts to split into several tasks
+        CountMatrix matrix = randomMatrix(numAreas, numRuns, 11);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int numToRemove : new int[]{0, 1, 24, 499}) {
+                int[] lower = new int[numAreas];
+                int[] upper = new int[numAreas];
+                matrix.computeBounds(numToRemove, lower, upper, pool);
+                int[] sorted = new int[numRuns];
+                for (int a = 0; a < numAreas; a++) {
+                    matrix.getAreaCounts(a, sorted);
+                    Arrays.sort(sorted);
+                    assertEquals(sorted[numToRemove], lower[a]);
+                    assertEquals(sorted[numRuns - 1 - numToRemove], upper[a]);
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyOutliersAreRejected() {
+        CountMatrix matrix = randomMatrix(2, 10, 1);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            matrix.computeBounds(5, new int[2], new int[2], pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void runsAreStoredByAreaThenRun() {
+        CountMatrix matrix = new CountMatrix(3, 2);
+        matrix.setRun(0, new int[]{1, 2, 3});
+        matrix.setRun(1, new int[]{4, 5, 6});
+        assertArrayEquals(new int[]{1, 4, 2, 5, 3, 6}, matrix.getCounts());
+        assertEquals(6, matrix.getFirstRunTotal());
+        assertEquals(15, matrix.getRunTotal(1));
+    }
+
+    /** A matrix of random counts, with a different spread of values in each area */
+    static CountMatrix randomMatrix(int numAreas, int numRuns, long seed) {
+        Random random = new Random(seed);
+        CountMatrix matrix = new CountMatrix(numAreas, numRuns);
+        int[] run = new int[numAreas];
+        for (int r = 0; r < numRuns; r++) {
+            for (int a = 0; a < numAreas; a++) {
+                run[a] = random.nextInt(1 + a % 50);
+            }
+            matrix.setRun(r, run);
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,128 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the Monte-Carlo counts read from a counts file are the ones that were saved.
+ * @author Nick Malleson
+ */
+public class CountsFileTest {
+
+    /** Create areas with made-up numbers of points */
+    private static List<Area> areas(int numAreas) {
+        List<Area> areas = new ArrayList<Area>();
+        for (int i = 0; i < numAreas; i++) {
+            Area a = new Area(null);
+            a.numBasePoints = 3 * i;
+            a.absNumTestPoints = 7 * i + 1;
+            areas.add(a);
+        }
+        return areas;
+    }
+
+    /** Check that the numbers read from a counts file are those that were written */
+    private static void assertSameCounts(CountMatrix matrix, List<Area> areas, CountsFile read) {
+        assertEquals(matrix.getNumAreas(), read.getNumAreas());
+        assertEquals(matrix.getNumRuns(), read.getMatrix().getNumRuns());
+        assertTrue(Arrays.equals(matrix.getCounts(), read.getMatrix().getCounts()));
+        for (int i = 0; i < areas.size(); i++) {
+            assertEquals(areas.get(i).numBasePoints, read.getNumBasePoints(i));
+            assertEquals(areas.get(i).absNumTestPoints, read.getAbsNumTestPoints(i));
+        }
+        assertEquals(11, read.getTotalSampledTestPoints());
+        assertEquals(22, read.getTotalBasePoints());
+        assertEquals(33, read.getAbsTotalTestPoints());
+    }
+
+    @Test
+    public void countsForShapefileAreasRoundTrip() throws IOException {
+        // (Large enough for the counts to be written and read in several blocks)
+        CountMatrix matrix = CountMatrixTest.randomMatrix(37, 1000, 1);
+        List<Area> areas = areas(37);
+        File file = File.createTempFile("counts", ".bin");
+        try {
+            CountsFile.write(file, matrix, areas, 11, 22, 33, null, new File("data/areas.shp"));
+            CountsFile read = CountsFile.read(file);
+            assertSameCounts(matrix, areas, read);
+            assertNull(read.getGrid());
+            assertTrue(read.isForAreas(new File("data/areas.shp")));
+            assertFalse(read.isForAreas(new File("data/points1.shp")));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void countsForGridRoundTrip() throws IOException {
+        CountMatrix matrix = CountMatrixTest.randomMatrix(4, 50, 2);
+        List<Area> areas = areas(4);
+        GridIndex grid = new GridIndex(new Cell(-1, 2, 9, 12), 5, new long[]{0, 6, 7, 24});
+        File file = File.createTempFile("counts", ".bin");
+        try {
+            CountsFile.write(file, matrix, areas, 11, 22, 33, grid, null);
+            CountsFile read = CountsFile.read(file);
+            assertSameCounts(matrix, areas, read);
+            GridIndex readGrid = read.getGrid();
+            assertEquals(5, readGrid.getGridSize());
+            Cell box = readGrid.getBoundingBox();
+            assertEquals(-1, box.minX, 0);
+            assertEquals(2, box.minY, 0);
+            assertEquals(9, box.maxX, 0);
+            assertEquals(12, box.maxY, 0);
+            assertEquals(4, readGrid.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(grid.getCellId(i), readGrid.getCellId(i));
+            }
+            assertFalse(read.isForAreas(new File("data/areas.shp")));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManyCountsAreRejected() throws IOException {
+        File file = File.createTempFile("counts", ".bin");
+        try {
+            CountsFile.write(file, CountMatrixTest.randomMatrix(2, 2, 3), areas(2), 11, 22, 33, null,
+                    new File("data/areas.shp"));
+            // Change the numbers of areas and runs to ones whose product overflows an int
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(8);
+                raf.writeInt(Integer.reverseBytes(1 << 20));
+                raf.writeInt(Integer.reverseBytes(1 << 12));
+            }
+            finally {
+                raf.close();
+            }
+            CountsFile.read(file);
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
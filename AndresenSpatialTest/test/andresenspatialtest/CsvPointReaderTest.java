@@ -0,0 +1,165 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the CSV point reader against GeoTools and against parsing the lines as strings.
+ * @author Nick Malleson
+ */
+public class CsvPointReaderTest {
+
+    @Test
+    public void pointsMatchTheShapefile() throws IOException {
+        List<Coordinate> expected = ShapefilePointReaderTest.readWithGeoTools(new File("data/points1.shp"));
+        File csv = File.createTempFile("points", ".csv");
+        try {
+            // Quoted fields (with commas), a row without a location, Windows line endings and
+            // an exponent should all be handled
+            Writer out = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+            try {
+                out.write("Crime ID,\"Location, street\",Longitude,Latitude\r\n");
+                for (int i = 0; i < expected.size(); i++) {
+                    Coordinate c = expected.get(i);
+                    out.write(i + ",\"On or near High Street, Leeds\"," + c.x + "," + c.y + "\r\n");
+                    if (i == 3) {
+                        out.write("x,No location,,\r\n");
+                    }
+                }
+                out.write("y,Exponent,1.5E3,-2.5e-1\r\n");
+            }
+            finally {
+                out.close();
+            }
+            PointSet points = CsvPointReader.read(csv);
+            assertEquals(1, points.getNumSkipped());
+            assertEquals(expected.size() + 1, points.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).x, points.getX(i), 0);
+                assertEquals(expected.get(i).y, points.getY(i), 0);
+            }
+            assertEquals(1500, points.getX(expected.size()), 0);
+            assertEquals(-0.25, points.getY(expected.size()), 0);
+        }
+        finally {
+            csv.delete();
+        }
+    }
+
+    @Test
+    public void policeFilesMatchParsingTheLines() throws IOException {
+        for (String name : new String[]{"leeds_data/2014-07-west-yorkshire-street.csv",
+                    "leeds_data/2014-11-west-yorkshire-street.csv"}) {
+            File csv = new File(name);
+            List<double[]> expected = new ArrayList<double[]>();
+            int skipped = 0;
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+            try {
+                in.readLine(); // Month,Longitude,Latitude,Crime type
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(",", -1);
+                    if (fields[1].isEmpty() || fields[2].isEmpty()) {
+                        skipped++;
+                    }
+                    else {
+                        expected.add(new double[]{Double.parseDouble(fields[1]), Double.parseDouble(fields[2])});
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+            PointSet points = CsvPointReader.read(csv);
+            assertEquals(skipped, points.getNumSkipped());
+            assertEquals(expected.size(), points.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i)[0], points.getX(i), 0);
+                assertEquals(expected.get(i)[1], points.getY(i), 0);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void filesWithoutCoordinatesAreRejected() throws IOException {
+        File csv = File.createTempFile("points", ".csv");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+            try {
+                out.write("Month,Crime type\n2014-07,Burglary\n");
+            }
+            finally {
+                out.close();
+            }
+            CsvPointReader.read(csv);
+        }
+        finally {
+            csv.delete();
+        }
+    }
+
+    @Test
+    public void policeFilesCanBeConvertedToBritishNationalGrid() throws Exception {
+        PointSet points = CsvPointReader.read(new File("leeds_data/2014-07-west-yorkshire-street.csv"));
+        assertTrue(points.isLongitudeLatitude());
+        CoordinateReferenceSystem bng = ShapefilePointReader.readCRS(new File("leeds_data/leeds_msoa_2011.shp"));
+        PointSet converted = points.transform(CRS.findMathTransform(DefaultGeographicCRS.WGS84, bng, true));
+        assertFalse(converted.isLongitudeLatitude());
+        assertEquals(points.size(), converted.size());
+        assertEquals(points.getNumSkipped(), converted.getNumSkipped());
+        for (int i = 0; i < converted.size(); i++) {
+            // (West Yorkshire is roughly 380-460km east and 400-460km north)
+            assertTrue(converted.getX(i) > 380000 && converted.getX(i) < 460000);
+            assertTrue(converted.getY(i) > 400000 && converted.getY(i) < 460000);
+        }
+    }
+
+    @Test
+    public void xAndYColumnsAreNotLongitudeAndLatitude() throws IOException {
+        File csv = File.createTempFile("points", ".csv");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+            try {
+                out.write("X,Y\n430000,433000\n");
+            }
+            finally {
+                out.close();
+            }
+            PointSet points = CsvPointReader.read(csv);
+            assertEquals(1, points.size());
+            assertFalse(points.isLongitudeLatitude());
+        }
+        finally {
+            csv.delete();
+        }
+    }
+}
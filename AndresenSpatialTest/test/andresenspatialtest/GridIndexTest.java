@@ -0,0 +1,125 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks which cell points on the edges of grid cells are in.
+ * @author Nick Malleson
+ */
+public class GridIndexTest {
+
+    /** A 10 x 10 grid of 1 x 1 cells from (0, 0) to (10, 10), with every cell occupied */
+    private static GridIndex fullGrid() {
+        double[] xy = new double[200];
+        for (int c = 0; c < 10; c++) {
+            for (int r = 0; r < 10; r++) {
+                xy[2 * (c * 10 + r)] = c + 0.5;
+                xy[2 * (c * 10 + r) + 1] = r + 0.5;
+            }
+        }
+        return new GridIndex(new Cell(0, 0, 10, 10), 10, AreaIndexTest.points(xy));
+    }
+
+    /** Check that a point is in the cell in the given column and row */
+    private static void assertInCell(GridIndex grid, double x, double y, int column, int row) {
+        int area = grid.locate(x, y);
+        assertTrue("(" + x + ", " + y + ") isn't in a cell", area != AreaLocator.NO_AREA);
+        assertEquals("column of (" + x + ", " + y + ")", column, grid.getColumn(area));
+        assertEquals("row of (" + x + ", " + y + ")", row, grid.getRow(area));
+    }
+
+    @Test
+    public void pointsOnInnerEdgesAreInTheCellAboveOrToTheRight() {
+        GridIndex grid = fullGrid();
+        assertEquals(100, grid.size());
+        assertInCell(grid, 3, 5.5, 3, 5);
+        assertInCell(grid, 3.5, 5, 3, 5);
+        assertInCell(grid, 3, 5, 3, 5);
+        assertInCell(grid, 2.999999, 4.999999, 2, 4);
+    }
+
+    @Test
+    public void pointsOnTheOuterEdgesAreInTheGrid() {
+        GridIndex grid = fullGrid();
+        assertInCell(grid, 0, 0, 0, 0);
+        assertInCell(grid, 10, 10, 9, 9);
+        assertInCell(grid, 10, 0, 9, 0);
+        assertInCell(grid, 0, 10, 0, 9);
+        assertInCell(grid, 10, 4.5, 9, 4);
+    }
+
+    @Test
+    public void pointsOutsideTheBoxAreNotInAnyCell() {
+        GridIndex grid = fullGrid();
+        assertEquals(AreaLocator.NO_AREA, grid.locate(-0.000001, 5));
+        assertEquals(AreaLocator.NO_AREA, grid.locate(10.000001, 5));
+        assertEquals(AreaLocator.NO_AREA, grid.locate(5, 10.000001));
+        assertEquals(AreaLocator.NO_AREA, grid.locate(Double.NaN, 5));
+    }
+
+    @Test
+    public void onlyOccupiedCellsAreAreas() {
+        GridIndex grid = new GridIndex(new Cell(0, 0, 10, 10), 10, AreaIndexTest.points(0, 0, 10, 10, 3, 5, 3.5, 5.5));
+        assertEquals(3, grid.size()); // (3, 5) and (3.5, 5.5) are in the same cell
+        assertEquals(100, grid.getNumCells());
+        assertEquals(AreaLocator.NO_AREA, grid.locate(5.5, 5.5));
+        int[] counts = grid.countPointsWithin(AreaIndexTest.points(3, 5, 2.9, 5, 10, 10, 5.5, 5.5));
+        assertEquals(1, counts[grid.locate(3, 5)]);
+        assertEquals(1, counts[grid.locate(10, 10)]);
+        assertEquals(0, counts[grid.locate(0, 0)]);
+    }
+
+    @Test
+    public void geometriesMustBeInsideOneCell() {
+        GridIndex grid = fullGrid();
+        GeometryFactory f = new GeometryFactory();
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        geometries.add(AreaIndexTest.square(3.2, 5.2, 0.5).geometry); // Inside cell (3, 5)
+        geometries.add(AreaIndexTest.square(3, 5, 1).geometry); // Touches the next cells' edges
+        geometries.add(f.createPoint(new Coordinate(3, 5)));
+        int[] counts = grid.countPointsWithin(PointSet.fromGeometries(geometries));
+        assertEquals(2, counts[grid.locate(3.5, 5.5)]);
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        assertEquals(2, total);
+    }
+
+    @Test
+    public void everyOccupiedCellIsFoundInALargeGrid() {
+        // Enough cells for the set of occupied cells to grow several times
+        int size = 300;
+        double[] xy = new double[2 * size * size];
+        for (int i = 0; i < size * size; i++) {
+            xy[2 * i] = i / size + 0.5;
+            xy[2 * i + 1] = i % size + 0.5;
+        }
+        GridIndex grid = new GridIndex(new Cell(0, 0, size, size), size, AreaIndexTest.points(xy));
+        assertEquals(size * size, grid.size());
+        for (int area = 0; area < grid.size(); area++) {
+            assertEquals(area, grid.getCellId(area));
+        }
+    }
+}
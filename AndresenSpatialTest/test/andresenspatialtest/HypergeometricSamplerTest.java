@@ -0,0 +1,110 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.util.SplittableRandom;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the hypergeometric draws against the closed-form mean and variance.
+ * @author Nick Malleson
+ */
+public class HypergeometricSamplerTest {
+
+    private static final int DRAWS = 200000;
+
+    /**
+     * Draw lots of times and check the sample mean and variance are close to
+     * n*K/N and n*(K/N)*(1-K/N)*(N-n)/(N-1).
+     */
+    private static void checkMoments(int good, int bad, int sample) {
+        SplittableRandom random = new SplittableRandom(42);
+        double sum = 0, sumSquares = 0;
+        for (int i = 0; i < DRAWS; i++) {
+            int k = HypergeometricSampler.hypergeometric(random, good, bad, sample);
+            assertTrue(k >= Math.max(0, sample - bad) && k <= Math.min(sample, good));
+            sum += k;
+            sumSquares += (double) k * k;
+        }
+        double n = sample, total = (double) good + bad, p = good / total;
+        double mean = n * p;
+        double var = n * p * (1 - p) * (total - n) / (total - 1);
+        double sampleMean = sum / DRAWS;
+        double sampleVar = sumSquares / DRAWS - sampleMean * sampleMean;
+        // Five standard errors of the mean, and a few percent for the variance
+        assertEquals("mean of " + good + "/" + bad + "/" + sample, mean, sampleMean, 5 * Math.sqrt(var / DRAWS));
+        assertEquals("variance of " + good + "/" + bad + "/" + sample, var, sampleVar, 0.03 * var);
+    }
+
+    @Test
+    public void sequentialDrawsHaveTheRightMoments() {
+        checkMoments(20, 30, 5); // Small sample
+        checkMoments(20, 30, 45); // Most of the points sampled
+    }
+
+    @Test
+    public void ratioOfUniformsDrawsHaveTheRightMoments() {
+        checkMoments(300, 700, 850);
+        checkMoments(700, 300, 150);
+        checkMoments(50000, 2000000, 1700000);
+    }
+
+    @Test
+    public void edgeCases() {
+        SplittableRandom random = new SplittableRandom(1);
+        assertEquals(0, HypergeometricSampler.hypergeometric(random, 0, 10, 5));
+        assertEquals(0, HypergeometricSampler.hypergeometric(random, 10, 10, 0));
+        assertEquals(5, HypergeometricSampler.hypergeometric(random, 10, 0, 5));
+        assertEquals(10, HypergeometricSampler.hypergeometric(random, 10, 10, 20));
+    }
+
+    @Test
+    public void logFactorialMatchesTheSum() {
+        double exact = 0;
+        for (int k = 1; k < 1000; k++) {
+            exact += Math.log(k);
+            assertEquals(exact, HypergeometricSampler.logFactorial(k), 1e-9 * Math.max(1, exact));
+        }
+    }
+
+    @Test
+    public void areaCountsHaveTheRightMeans() {
+        int[] allCounts = {100, 0, 250, 40, 610};
+        int total = 1100; // 100 points outside all the areas
+        HypergeometricSampler sampler = new HypergeometricSampler(allCounts, total, 85);
+        assertEquals(935, sampler.getSampleSize());
+        SplittableRandom random = new SplittableRandom(7);
+        int[] counts = new int[allCounts.length];
+        double[] sums = new double[allCounts.length];
+        int runs = 20000;
+        for (int r = 0; r < runs; r++) {
+            sampler.sample(random, counts);
+            int sampled = 0;
+            for (int i = 0; i < counts.length; i++) {
+                assertTrue(counts[i] >= 0 && counts[i] <= allCounts[i]);
+                sampled += counts[i];
+                sums[i] += counts[i];
+            }
+            // The rest of the sample came from the points outside the areas
+            assertTrue(sampled <= sampler.getSampleSize() && sampled >= sampler.getSampleSize() - 100);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            double mean = (double) sampler.getSampleSize() * allCounts[i] / total;
+            assertEquals(mean, sums[i] / runs, 0.01 * mean + 1e-9);
+        }
+    }
+}
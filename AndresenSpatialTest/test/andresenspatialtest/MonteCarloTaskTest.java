@@ -0,0 +1,94 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the Monte-Carlo counts only depend on the seed, not on the number of
+ * threads that do the runs.
+ * @author Nick Malleson
+ */
+public class MonteCarloTaskTest {
+
+    private static final int NUM_AREAS = 30;
+    private static final int NUM_POINTS = 5000;
+    private static final int NUM_RUNS = 200;
+
+    /** Run the simulation with the given number of threads and return the counts */
+    private static int[] simulate(IntBuffer ids, int[] testCounts, boolean hypergeometric, long seed, int threads) {
+        CountMatrix matrix = new CountMatrix(NUM_AREAS, NUM_RUNS);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new MonteCarloTask(ids, NUM_POINTS, testCounts, 85, hypergeometric,
+                    MonteCarloTask.createRunRandoms(seed, 0, NUM_RUNS), matrix, 0, NUM_RUNS, null));
+        }
+        finally {
+            pool.shutdown();
+        }
+        return matrix.getCounts();
+    }
+
+    private static void checkSameForAnyNumberOfThreads(boolean hypergeometric) {
+        Random random = new Random(1);
+        IntBuffer ids = IntBuffer.allocate(NUM_POINTS);
+        int[] testCounts = new int[NUM_AREAS];
+        for (int i = 0; i < NUM_POINTS; i++) {
+            int id = random.nextInt(10) == 0 ? AreaIndex.NO_AREA : random.nextInt(NUM_AREAS);
+            ids.put(i, id);
+            if (id != AreaIndex.NO_AREA) {
+                testCounts[id]++;
+            }
+        }
+        int[] oneThread = simulate(ids, testCounts, hypergeometric, 42, 1);
+        for (int threads : new int[]{2, 3, 8}) {
+            int[] counts = simulate(ids, testCounts, hypergeometric, 42, threads);
+            assertTrue(threads + " threads", Arrays.equals(oneThread, counts));
+        }
+        assertFalse(Arrays.equals(oneThread, simulate(ids, testCounts, hypergeometric, 43, 1)));
+    }
+
+    @Test
+    public void pointSamplingIsTheSameForAnyNumberOfThreads() {
+        checkSameForAnyNumberOfThreads(false);
+    }
+
+    @Test
+    public void hypergeometricSamplingIsTheSameForAnyNumberOfThreads() {
+        checkSameForAnyNumberOfThreads(true);
+    }
+
+    @Test
+    public void laterRunsDontDependOnEarlierOnes() {
+        // A worker process that only does the later runs gets the same random numbers for them
+        SplittableRandom[] all = MonteCarloTask.createRunRandoms(7, 0, 10);
+        SplittableRandom[] later = MonteCarloTask.createRunRandoms(7, 6, 10);
+        for (int i = 0; i < 10; i++) {
+            if (i < 6) {
+                assertNull(later[i]);
+            }
+            else {
+                assertEquals(all[i].nextLong(), later[i].nextLong());
+            }
+        }
+    }
+}
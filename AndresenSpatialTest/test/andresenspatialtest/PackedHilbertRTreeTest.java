@@ -0,0 +1,116 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that searching the R-tree finds the same areas as testing every area's bounding
+ * box, and that a saved tree is the same when it is opened again.
+ * @author Nick Malleson
+ */
+public class PackedHilbertRTreeTest {
+
+    /** Create squares of different sizes, some of them overlapping */
+    private static List<Area> randomSquares(int n, long seed) {
+        Random random = new Random(seed);
+        List<Area> areas = new ArrayList<Area>();
+        for (int i = 0; i < n; i++) {
+            areas.add(AreaIndexTest.square(random.nextDouble() * 1000, random.nextDouble() * 1000,
+                    1 + random.nextDouble() * (i % 10 == 0 ? 200 : 20)));
+        }
+        return areas;
+    }
+
+    /** The areas whose bounding boxes intersect a box, found by the tree (sorted) */
+    private static int[] search(PackedHilbertRTree tree, Envelope box, PackedHilbertRTree.Results results) {
+        tree.search(box.getMinX(), box.getMinY(), box.getMaxX(), box.getMaxY(), results);
+        int[] found = new int[results.size()];
+        for (int i = 0; i < found.length; i++) {
+            found[i] = results.get(i);
+        }
+        Arrays.sort(found);
+        return found;
+    }
+
+    /** The areas whose bounding boxes intersect a box, found by testing every area */
+    private static int[] bruteForce(List<Area> areas, Envelope box) {
+        List<Integer> found = new ArrayList<Integer>();
+        for (int i = 0; i < areas.size(); i++) {
+            if (areas.get(i).geometry.getEnvelopeInternal().intersects(box)) {
+                found.add(i);
+            }
+        }
+        int[] result = new int[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get(i);
+        }
+        return result;
+    }
+
+    /** Check a tree against a brute force search with random boxes (and points) */
+    private static void assertSameAsBruteForce(List<Area> areas, PackedHilbertRTree tree) {
+        Random random = new Random(42);
+        PackedHilbertRTree.Results results = new PackedHilbertRTree.Results();
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextDouble() * 1100 - 50;
+            double y = random.nextDouble() * 1100 - 50;
+            double size = i % 2 == 0 ? 0 : random.nextDouble() * 100;
+            Envelope box = new Envelope(x, x + size, y, y + size);
+            assertArrayEquals(bruteForce(areas, box), search(tree, box, results));
+        }
+    }
+
+    @Test
+    public void searchFindsTheSameAreasAsBruteForce() {
+        for (int n : new int[]{0, 1, 15, 16, 17, 300, 5000}) {
+            List<Area> areas = randomSquares(n, n);
+            PackedHilbertRTree tree = PackedHilbertRTree.build(areas);
+            assertEquals(n, tree.size());
+            assertSameAsBruteForce(areas, tree);
+        }
+    }
+
+    @Test
+    public void savedTreeIsTheSame() throws IOException {
+        List<Area> areas = randomSquares(1000, 7);
+        File shapefile = File.createTempFile("areas", ".shp");
+        File file = File.createTempFile("areas", ".hrt");
+        try {
+            PackedHilbertRTree.build(areas).write(file, shapefile);
+            PackedHilbertRTree tree = PackedHilbertRTree.open(file, shapefile, areas.size());
+            assertNotNull(tree);
+            assertSameAsBruteForce(areas, tree);
+
+            // The tree is out of date if the number of areas or the shapefile is different
+            assertNull(PackedHilbertRTree.open(file, shapefile, areas.size() + 1));
+            assertTrue(shapefile.setLastModified(shapefile.lastModified() - 60000));
+            assertNull(PackedHilbertRTree.open(file, shapefile, areas.size()));
+        }
+        finally {
+            shapefile.delete();
+            file.delete();
+        }
+    }
+}
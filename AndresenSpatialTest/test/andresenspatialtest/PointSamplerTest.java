@@ -0,0 +1,117 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that point samples have the right size and never take more points from an area
+ * than it has.
+ * @author Nick Malleson
+ */
+public class PointSamplerTest {
+
+    private static final int NUM_AREAS = 12;
+
+    /** Random area ids, with some points outside every area if <code>withNoArea</code> */
+    private static IntBuffer randomIds(int numPoints, boolean withNoArea, int[] allCounts) {
+        Random random = new Random(numPoints);
+        IntBuffer ids = IntBuffer.allocate(numPoints);
+        for (int i = 0; i < numPoints; i++) {
+            // (Uneven areas, so some are much smaller than others)
+            int id = (int) Math.sqrt(random.nextInt(NUM_AREAS * NUM_AREAS));
+            if (withNoArea && i % 5 == 0) {
+                id = AreaIndex.NO_AREA;
+            }
+            ids.put(i, id);
+            if (id != AreaIndex.NO_AREA) {
+                allCounts[id]++;
+            }
+        }
+        return ids;
+    }
+
+    private static void checkSamples(int numPoints, int percentage, boolean withNoArea) {
+        int[] allCounts = new int[NUM_AREAS];
+        IntBuffer ids = randomIds(numPoints, withNoArea, allCounts);
+        PointSampler sampler = new PointSampler(ids, numPoints, allCounts, percentage);
+        int expectedSize = numPoints - (int) Math.round(numPoints * ((100 - percentage) / 100.0));
+        assertEquals(expectedSize, sampler.getSampleSize());
+
+        SplittableRandom random = new SplittableRandom(percentage);
+        int[] counts = new int[NUM_AREAS];
+        for (int s = 0; s < 200; s++) {
+            sampler.sample(random, counts);
+            int total = 0;
+            for (int a = 0; a < NUM_AREAS; a++) {
+                assertTrue(counts[a] >= 0 && counts[a] <= allCounts[a]);
+                total += counts[a];
+            }
+            if (withNoArea) { // (Sampled points outside every area aren't counted)
+                assertTrue(total <= expectedSize);
+            }
+            else {
+                assertEquals(expectedSize, total);
+            }
+        }
+    }
+
+    @Test
+    public void samplesHaveTheRightSize() {
+        for (int percentage : new int[]{1, 30, 50, 51, 85, 100}) {
+            checkSamples(1001, percentage, false);
+            checkSamples(1001, percentage, true);
+        }
+    }
+
+    @Test
+    public void samplesDontDependOnEarlierSamples() {
+        // The swaps are undone after each sample, so the same random numbers give the same sample
+        for (int percentage : new int[]{20, 85}) {
+            int[] allCounts = new int[NUM_AREAS];
+            PointSampler sampler = new PointSampler(randomIds(500, true, allCounts), 500, allCounts, percentage);
+            int[] first = new int[NUM_AREAS];
+            sampler.sample(new SplittableRandom(3), first);
+            int[] other = new int[NUM_AREAS];
+            SplittableRandom random = new SplittableRandom(4);
+            for (int s = 0; s < 10; s++) {
+                sampler.sample(random, other);
+            }
+            int[] again = new int[NUM_AREAS];
+            sampler.sample(new SplittableRandom(3), again);
+            assertTrue(Arrays.equals(first, again));
+        }
+    }
+
+    @Test
+    public void theAreaIdsAreNotChanged() {
+        int[] allCounts = new int[NUM_AREAS];
+        IntBuffer ids = randomIds(300, true, allCounts);
+        int[] before = new int[300];
+        ids.get(before);
+        ids.clear();
+        PointSampler sampler = new PointSampler(ids, 300, allCounts, 40);
+        sampler.sample(new SplittableRandom(5), new int[NUM_AREAS]);
+        int[] after = new int[300];
+        ids.get(after);
+        assertTrue(Arrays.equals(before, after));
+    }
+}
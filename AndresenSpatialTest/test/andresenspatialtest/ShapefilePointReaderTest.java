@@ -0,0 +1,258 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.feature.FeatureIterator;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the direct point shapefile reader gives the same points as GeoTools.
+ * @author Nick Malleson
+ */
+public class ShapefilePointReaderTest {
+
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    /** Read the coordinates of every feature in a shapefile with GeoTools */
+    static List<Coordinate> readWithGeoTools(File shapefile) throws IOException {
+        List<Coordinate> coords = new ArrayList<Coordinate>();
+        FileDataStore store = FileDataStoreFinder.getDataStore(shapefile);
+        try {
+            FeatureSource<SimpleFeatureType, SimpleFeature> source = store.getFeatureSource();
+            FeatureIterator<SimpleFeature> it = source.getFeatures().features();
+            try {
+                while (it.hasNext()) {
+                    coords.add(((Geometry) it.next().getDefaultGeometry()).getCoordinate());
+                }
+            }
+            finally {
+                it.close();
+            }
+        }
+        finally {
+            store.dispose();
+        }
+        return coords;
+    }
+
+    /** Check that a set of points has the given coordinates, in the same order */
+    static void assertSamePoints(List<Coordinate> expected, PointSet points) {
+        assertEquals(expected.size(), points.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).x, points.getX(i), 0);
+            assertEquals(expected.get(i).y, points.getY(i), 0);
+        }
+    }
+
+    /** Copy a file */
+    static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void pointsMatchGeoTools() throws IOException {
+        for (String name : new String[]{"data/points1.shp", "data/points2.shp", "leeds_data/crime-jul.shp"}) {
+            File shapefile = new File(name);
+            assertSamePoints(readWithGeoTools(shapefile), ShapefilePointReader.read(shapefile, pool));
+        }
+    }
+
+    @Test
+    public void pointsMatchGeoToolsWithoutAnIndexFile() throws IOException {
+        // Without a .shx file the records are read one after the other
+        File shapefile = File.createTempFile("points", ".shp");
+        try {
+            copy(new File("data/points2.shp"), shapefile);
+            assertSamePoints(readWithGeoTools(new File("data/points2.shp")), ShapefilePointReader.read(shapefile, pool));
+        }
+        finally {
+            shapefile.delete();
+        }
+    }
+
+    /**
+     * Write a point shapefile (without a .dbf file).
+     * @param points The x and y of the point in each record, or null for a null record.
+     * @param withIndex Whether to write a .shx file as well.
+     */
+    static void writeShapefile(File shapefile, List<double[]> points, boolean withIndex) throws IOException {
+        int numNull = 0;
+        for (double[] p : points) {
+            numNull += p == null ? 1 : 0;
+        }
+        int shpLength = 100 + 12 * numNull + 28 * (points.size() - numNull);
+        ByteBuffer shp = header(shpLength);
+        ByteBuffer shx = header(100 + 8 * points.size());
+        int record = 0;
+        for (double[] p : points) {
+            int offset = shp.position();
+            shp.order(ByteOrder.BIG_ENDIAN);
+            shp.putInt(++record);
+            shp.putInt(p == null ? 2 : 10); // (Content length in 16-bit words)
+            shp.order(ByteOrder.LITTLE_ENDIAN);
+            if (p == null) {
+                shp.putInt(0);
+            }
+            else {
+                shp.putInt(1);
+                shp.putDouble(p[0]);
+                shp.putDouble(p[1]);
+            }
+            shx.putInt(offset / 2);
+            shx.putInt(p == null ? 2 : 10);
+        }
+        write(shp, shapefile);
+        if (withIndex) {
+            write(shx, new File(shapefile.getPath().replace(".shp", ".shx")));
+        }
+    }
+
+    /** Create a buffer for a .shp or .shx file and write the file header for point records */
+    private static ByteBuffer header(int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(9994);
+        buffer.putInt(24, length / 2);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(28, 1000);
+        buffer.putInt(32, 1);
+        buffer.position(100);
+        buffer.order(ByteOrder.BIG_ENDIAN); // (The .shx records are big-endian)
+        return buffer;
+    }
+
+    private static void write(ByteBuffer buffer, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Read a shapefile written by <code>writeShapefile()</code> and check it has the points that aren't null */
+    private static void assertReadsPoints(List<double[]> points, boolean withIndex) throws IOException {
+        File shapefile = File.createTempFile("points", ".shp");
+        File shx = new File(shapefile.getPath().replace(".shp", ".shx"));
+        try {
+            writeShapefile(shapefile, points, withIndex);
+            PointSet read = ShapefilePointReader.read(shapefile, pool);
+            int n = 0;
+            for (double[] p : points) {
+                if (p != null) {
+                    assertEquals(p[0], read.getX(n), 0);
+                    assertEquals(p[1], read.getY(n), 0);
+                    n++;
+                }
+            }
+            assertEquals(n, read.size());
+            assertEquals(points.size() - n, read.getNumSkipped());
+        }
+        finally {
+            shapefile.delete();
+            shx.delete();
+        }
+    }
+
+    @Test
+    public void nullRecordsAreSkipped() throws IOException {
+        List<double[]> points = new ArrayList<double[]>();
+        points.add(null);
+        points.add(new double[]{1, 2});
+        points.add(null);
+        points.add(null);
+        points.add(new double[]{3, 4});
+        points.add(null);
+        assertReadsPoints(points, true);
+        assertReadsPoints(points, false);
+    }
+
+    @Test
+    public void pointsWithNaNCoordinatesAreKept() throws IOException {
+        List<double[]> points = new ArrayList<double[]>();
+        points.add(new double[]{Double.NaN, 1});
+        points.add(null);
+        points.add(new double[]{2, Double.NaN});
+        points.add(new double[]{Double.NaN, Double.NaN});
+        assertReadsPoints(points, true);
+        assertReadsPoints(points, false);
+    }
+
+    @Test
+    public void nullRecordsAreSkippedAcrossChunks() throws IOException {
+        // Enough records to be decoded in several parallel chunks, with null records (and
+        // so gaps to close) in some chunks and not others
+        List<double[]> points = new ArrayList<double[]>();
+        for (int i = 0; i < 300000; i++) {
+            boolean isNull = (i < 70000 && i % 7 == 0) || (i >= 200000 && i % 1000 == 0);
+            points.add(isNull ? null : new double[]{i, -i});
+        }
+        assertReadsPoints(points, true);
+        assertReadsPoints(points, false);
+    }
+
+    @Test
+    public void areasAreLeftToGeoTools() throws IOException {
+        assertNull(ShapefilePointReader.read(new File("data/areas.shp"), pool));
+    }
+}
@@ -0,0 +1,143 @@
+/*This file is part of AndresenSpatialTest.
+
+AndresenSpatialTest is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+AndresenSpatialTest is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with AndresenSpatialTest.  If not, see <http://www.gnu.org/licenses/>.*/
+
+package andresenspatialtest;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the streaming bounds are the same as those from a full <code>CountMatrix</code>.
+ * @author Nick Malleson
+ */
+public class StreamingBoundsTest {
+
+    private static final int NUM_AREAS = 40;
+    private static final int NUM_RUNS = 999;
+
+    /** Random counts for every run, indexed by run and then area */
+    private static int[][] randomRuns(long seed) {
+        Random random = new Random(seed);
+        int[][] runs = new int[NUM_RUNS][NUM_AREAS];
+        for (int r = 0; r < NUM_RUNS; r++) {
+            for (int a = 0; a < NUM_AREAS; a++) {
+                runs[r][a] = random.nextInt(1 + a * 3); // (Area 0 is always 0)
+            }
+        }
+        return runs;
+    }
+
+    private static CountMatrix matrix(int[][] runs) {
+        CountMatrix matrix = new CountMatrix(NUM_AREAS, NUM_RUNS);
+        for (int r = 0; r < NUM_RUNS; r++) {
+            matrix.setRun(r, runs[r]);
+        }
+        return matrix;
+    }
+
+    /** Check that two sets of counts give the same bounds */
+    private static void assertSameBounds(RunBounds expected, RunBounds actual, int numToRemove, ForkJoinPool pool) {
+        int[] expectedLower = new int[NUM_AREAS], expectedUpper = new int[NUM_AREAS];
+        int[] lower = new int[NUM_AREAS], upper = new int[NUM_AREAS];
+        expected.computeBounds(numToRemove, expectedLower, expectedUpper, pool);
+        actual.computeBounds(numToRemove, lower, upper, pool);
+        assertArrayEquals(expectedLower, lower);
+        assertArrayEquals(expectedUpper, upper);
+        assertEquals(expected.getFirstRunTotal(), actual.getFirstRunTotal());
+    }
+
+    @Test
+    public void boundsMatchTheCountMatrix() {
+        final int[][] runs = randomRuns(5);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int numToRemove : new int[]{0, 1, 24, 100}) {
+                final StreamingBounds bounds = new StreamingBounds(NUM_AREAS, numToRemove);
+                // Add the runs from several threads at once, as the simulation does
+                pool.invoke(new AddRuns(bounds, runs, 0, NUM_RUNS));
+                assertSameBounds(matrix(runs), bounds, numToRemove, pool);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void savedBoundsFromWorkersMerge() {
+        int[][] runs = randomRuns(9);
+        int numToRemove = 24;
+        StreamingBounds merged = new StreamingBounds(NUM_AREAS, numToRemove);
+        // Share the runs out unevenly, like MonteCarloWorker processes, and merge what they save
+        int[] splits = {0, 100, 101, 640, NUM_RUNS};
+        for (int w = 0; w + 1 < splits.length; w++) {
+            StreamingBounds worker = new StreamingBounds(NUM_AREAS, numToRemove);
+            for (int r = splits[w]; r < splits[w + 1]; r++) {
+                worker.setRun(r, runs[r]);
+            }
+            IntBuffer saved = IntBuffer.allocate(worker.getSavedSize());
+            worker.save(saved);
+            assertFalse(saved.hasRemaining());
+            saved.flip();
+            merged.addSaved(saved);
+        }
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            assertSameBounds(matrix(runs), merged, numToRemove, pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentNumberOfOutliersIsRejected() {
+        StreamingBounds bounds = new StreamingBounds(NUM_AREAS, 2);
+        bounds.computeBounds(3, new int[NUM_AREAS], new int[NUM_AREAS], null);
+    }
+
+    /** Adds a range of runs, splitting it up so the pool's threads add them at the same time */
+    private static class AddRuns extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private StreamingBounds bounds;
+        private int[][] runs;
+        private int from;
+        private int to;
+
+        AddRuns(StreamingBounds bounds, int[][] runs, int from, int to) {
+            this.bounds = bounds;
+            this.runs = runs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new AddRuns(this.bounds, this.runs, this.from, mid),
+                        new AddRuns(this.bounds, this.runs, mid, this.to));
+                return;
+            }
+            this.bounds.setRun(this.from, this.runs[this.from]);
+        }
+    }
+}